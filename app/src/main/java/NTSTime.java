@@ -1,9 +1,15 @@
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.text.NumberFormat;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+import nts.NTSKEStatistics;
 import nts.NTSUDPClient;
 import nts.NtpUtils;
 import nts.NtpV3Packet;
@@ -20,28 +26,41 @@ public class NTSTime {
             List.of("paris.time.system76.com", "time.cloudflare.com"));
         NTSUDPClient client = new NTSUDPClient();
 
+        client.setDefaultTimeout(2000);
+
+        // Query all the servers concurrently, the total time is that of the slowest one
+        final Map<String, CompletableFuture<TimeInfo>> queries = new LinkedHashMap<>();
         for(String host: TIME_SERVERS)
         {
             try {
                 InetAddress hostAddr = InetAddress.getByName(host);
+                queries.put(host, client.getTimeAsync(hostAddr));
+            } catch (UnknownHostException e) {
+                System.err.println("Unknown host: " + e.getMessage());
+            }
+        }
 
-                TimeInfo info = client.getTime(hostAddr);
-
+        for(Map.Entry<String, CompletableFuture<TimeInfo>> query: queries.entrySet())
+        {
+            try {
+                TimeInfo info = query.getValue().get();
 
-                System.out.println(" Server: " + host);
+                System.out.println(" Server: " + query.getKey());
                 processResponse(info);
 
-            } catch (UnknownHostException e) {
-                System.err.println("Unknown host: " + e.getMessage());
-            } catch(AuthenticationFailureException e)
-            {
-                System.err.println("Authentication failure: " + e.getMessage());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof AuthenticationFailureException) {
+                    System.err.println("Authentication failure: " + e.getCause().getMessage());
+                } else {
+                    e.getCause().printStackTrace();
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
         client.close();
 
+        System.out.println(NTSKEStatistics.getDefault());
     }
 
     public static void processResponse(final TimeInfo info) {
@@ -111,7 +130,6 @@ public class NTSTime {
         final TimeStamp origNtpTime = message.getOriginateTimeStamp();
         System.out.println(" Originate Timestamp:\t" + origNtpTime + "  " + origNtpTime.toDateString());
 
-        final long destTimeMillis = info.getReturnTime();
         // Receive Time is time request received by server (t2)
         final TimeStamp rcvNtpTime = message.getReceiveTimeStamp();
         System.out.println(" Receive Timestamp:\t" + rcvNtpTime + "  " + rcvNtpTime.toDateString());
@@ -121,7 +139,7 @@ public class NTSTime {
         System.out.println(" Transmit Timestamp:\t" + xmitNtpTime + "  " + xmitNtpTime.toDateString());
 
         // Destination time is time reply received by client (t4)
-        final TimeStamp destNtpTime = TimeStamp.getNtpTime(destTimeMillis);
+        final TimeStamp destNtpTime = TimeStamp.getNtpTime(Instant.ofEpochSecond(0, info.getReturnTimeNanos()));
         System.out.println(" Destination Timestamp:\t" + destNtpTime + "  " + destNtpTime.toDateString());
 
         info.computeDetails(); // compute offset/delay if not already done
@@ -131,6 +149,11 @@ public class NTSTime {
         final String offset = offsetMillis == null ? "N/A" : offsetMillis.toString();
 
         System.out.println(" Roundtrip delay(ms)=" + delay + ", clock offset(ms)=" + offset); // offset in ms
+
+        final Long offsetNanos = info.getOffsetNanos();
+        final Long delayNanos = info.getDelayNanos();
+        System.out.println(" Roundtrip delay(ns)=" + (delayNanos == null ? "N/A" : delayNanos.toString())
+                + ", clock offset(ns)=" + (offsetNanos == null ? "N/A" : offsetNanos.toString()));
     }
 
 }
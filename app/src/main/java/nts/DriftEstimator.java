@@ -0,0 +1,262 @@
+package nts;
+
+/**
+ * Estimates the frequency error of the local monotonic clock from a series of NTP samples and predicts the reference
+ * time between and after them.
+ * <p>
+ * Each sample pairs a reading of {@link System#nanoTime()} with the reference time at that moment. The last samples
+ * are kept in a bounded ring buffer of primitive arrays and a weighted linear regression, each sample weighted by the
+ * inverse square of its error bound, fits the reference time as the monotonic time plus a phase and a frequency
+ * correction. The prediction error bound is the mean error of the samples plus three standard deviations of the fit at
+ * that time, plus a wander allowance growing from the last sample on: when the servers are unreachable, the prediction
+ * keeps serving time in holdover with an error bound that keeps growing. A good frequency estimate allows polling far
+ * less often for the same accuracy.
+ * </p>
+ * <p>
+ * All methods are synchronized; they are meant to be called at the pace of the polls. {@link #updateClock(NtsClock)}
+ * publishes the model to an {@link NtsClock}, whose reads are lock-free.
+ * </p>
+ */
+public final class DriftEstimator {
+
+    /** Default number of samples kept. */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /** Default frequency wander allowed in holdover, 0.1 ppm. */
+    public static final double DEFAULT_WANDER_RATE = 1e-7;
+
+    /** Floor of the error of a sample, to bound the weights. */
+    private static final long MIN_ERROR_NANOS = 1_000;
+
+    private final long[] monotonicNanos;
+    // reference time minus monotonic time, relative to yBase
+    private final long[] phaseNanos;
+    private final long[] errorNanos;
+    private int oldest;
+    private int size;
+    private long xBase;
+    private long yBase;
+    private long lastX;
+    private double wanderRate = DEFAULT_WANDER_RATE;
+
+    // fit, relative to xBase and yBase
+    private double xMean;
+    private double yMean;
+    private double slope;
+    private double slopeVariance;
+    private double meanVariance;
+    private double meanError;
+
+    /**
+     * Creates an estimator keeping the last {@link #DEFAULT_CAPACITY} samples.
+     */
+    public DriftEstimator() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity the number of samples kept, at least 2.
+     */
+    public DriftEstimator(final int capacity) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("Drift estimator capacity must be at least 2: " + capacity);
+        }
+        monotonicNanos = new long[capacity];
+        phaseNanos = new long[capacity];
+        errorNanos = new long[capacity];
+    }
+
+    /**
+     * Sets the frequency wander allowed in holdover, i.e. how fast the error bound grows after the last sample on top
+     * of the uncertainty of the frequency estimate.
+     *
+     * @param wanderRate the fractional frequency wander, e.g. 1e-7 for 0.1 ppm.
+     */
+    public synchronized void setWanderRate(final double wanderRate) {
+        this.wanderRate = Math.max(0, wanderRate);
+    }
+
+    /**
+     * Adds a sample, replacing the oldest one if the buffer is full.
+     *
+     * @param monotonicNanos      the value of {@link System#nanoTime()} when the sample was taken.
+     * @param referenceEpochNanos the reference time then, in nanoseconds since the epoch.
+     * @param errorNanos          the error bound of the reference time.
+     */
+    public synchronized void add(final long monotonicNanos, final long referenceEpochNanos, final long errorNanos) {
+        if (size == 0) {
+            xBase = monotonicNanos;
+            yBase = referenceEpochNanos - monotonicNanos;
+        }
+        final int capacity = this.monotonicNanos.length;
+        final int index;
+        if (size < capacity) {
+            index = (oldest + size) % capacity;
+            size++;
+        } else {
+            index = oldest;
+            oldest = (oldest + 1) % capacity;
+        }
+        this.monotonicNanos[index] = monotonicNanos;
+        this.phaseNanos[index] = referenceEpochNanos - monotonicNanos - yBase;
+        this.errorNanos[index] = Math.max(MIN_ERROR_NANOS, errorNanos);
+        lastX = size == 1 ? monotonicNanos : Math.max(lastX, monotonicNanos);
+        fit();
+    }
+
+    /**
+     * Adds the sample of one server, taken at its return time. Its error bound is its root distance.
+     *
+     * @param info the sample.
+     */
+    public void add(final TimeInfo info) {
+        // monotonic time of t4: now minus the time elapsed on the system clock since then
+        final long monotonic = System.nanoTime() - (NtsClock.systemEpochNanos() - info.getReturnTimeNanos());
+        add(monotonic, info.getReturnTimeNanos() + info.offsetNanos(), TimeSource.rootDistanceNanos(info));
+    }
+
+    /**
+     * Adds the combined estimate of several servers, taken now.
+     *
+     * @param estimate the estimate.
+     */
+    public void add(final TimeSource.Estimate estimate) {
+        final long monotonic = System.nanoTime();
+        add(monotonic, NtsClock.systemEpochNanos() + estimate.getOffsetNanos(), estimate.getErrorBoundNanos());
+    }
+
+    /**
+     * Weighted least squares fit of the phase against the monotonic time.
+     */
+    private void fit() {
+        final int capacity = monotonicNanos.length;
+        double sumW = 0;
+        double sumWx = 0;
+        double sumWy = 0;
+        double sumWe = 0;
+        for (int i = 0, j = oldest; i < size; i++, j = (j + 1) % capacity) {
+            final double error = errorNanos[j];
+            final double w = 1 / (error * error);
+            sumW += w;
+            sumWx += w * (monotonicNanos[j] - xBase);
+            sumWy += w * phaseNanos[j];
+            sumWe += w * error;
+        }
+        xMean = sumWx / sumW;
+        yMean = sumWy / sumW;
+        meanError = sumWe / sumW;
+
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 0, j = oldest; i < size; i++, j = (j + 1) % capacity) {
+            final double error = errorNanos[j];
+            final double w = 1 / (error * error);
+            final double dx = monotonicNanos[j] - xBase - xMean;
+            sxx += w * dx * dx;
+            sxy += w * dx * (phaseNanos[j] - yMean);
+        }
+        slope = sxx > 0 ? sxy / sxx : 0;
+
+        if (size > 2 && sxx > 0) {
+            double sumWr2 = 0;
+            for (int i = 0, j = oldest; i < size; i++, j = (j + 1) % capacity) {
+                final double error = errorNanos[j];
+                final double residual = phaseNanos[j] - yMean - slope * (monotonicNanos[j] - xBase - xMean);
+                sumWr2 += residual * residual / (error * error);
+            }
+            // weighted residual variance, scaled back to nanoseconds^2
+            final double variance = sumWr2 / sumW * size / (size - 2);
+            meanVariance = variance / size;
+            slopeVariance = variance / (sxx / sumW * size);
+        } else {
+            meanVariance = 0;
+            // two samples or less: the frequency is known to the error over their span at best, and to PHI with one
+            slopeVariance = size > 1 && sxx > 0 ? square(meanError / Math.max(1, Math.abs(lastX - monotonicNanos[oldest])))
+                    : square(TimeSource.PHI / 3);
+        }
+    }
+
+    private static double square(final double x) {
+        return x * x;
+    }
+
+    /**
+     * @return the number of samples kept.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Forgets all the samples, e.g. after a step of the reference time.
+     */
+    public synchronized void clear() {
+        size = 0;
+        oldest = 0;
+    }
+
+    /**
+     * @return the estimated fractional frequency error of the monotonic clock, positive if it runs slow, e.g. 1e-6 for
+     *         1 ppm; 0 with fewer than two samples.
+     */
+    public synchronized double getFrequency() {
+        return slope;
+    }
+
+    /**
+     * @return three standard deviations of the frequency estimate.
+     */
+    public synchronized double getFrequencyErrorBound() {
+        return 3 * Math.sqrt(slopeVariance);
+    }
+
+    /**
+     * Predicts the reference time at a point of the monotonic clock, between the samples or after them.
+     *
+     * @param monotonicNanos a value of {@link System#nanoTime()}.
+     * @return the predicted reference time in nanoseconds since the epoch.
+     * @throws IllegalStateException if there is no sample.
+     */
+    public synchronized long predictEpochNanos(final long monotonicNanos) {
+        checkSamples();
+        final double dx = monotonicNanos - xBase - xMean;
+        return monotonicNanos + yBase + Math.round(yMean + slope * dx);
+    }
+
+    /**
+     * Returns the bound of the error of {@link #predictEpochNanos(long)}: mean error of the samples, three standard
+     * deviations of the fit and, after the last sample, the wander allowance.
+     *
+     * @param monotonicNanos a value of {@link System#nanoTime()}.
+     * @return the error bound in nanoseconds.
+     * @throws IllegalStateException if there is no sample.
+     */
+    public synchronized long errorBoundNanos(final long monotonicNanos) {
+        checkSamples();
+        final double dx = monotonicNanos - xBase - xMean;
+        final double fit = 3 * Math.sqrt(meanVariance + slopeVariance * dx * dx);
+        final double holdover = wanderRate * Math.max(0, monotonicNanos - lastX);
+        return Math.round(meanError + fit + holdover);
+    }
+
+    /**
+     * Publishes the model to a clock: predicted offset and error bound now, frequency correction, and error growth of
+     * the frequency uncertainty plus the wander allowance. Called after each sample, and periodically in holdover if
+     * wanted, though the clock extrapolates on its own between calls. The clock is set to the prediction at the
+     * monotonic time read here, without going through the system clock.
+     *
+     * @param clock the clock to update.
+     * @throws IllegalStateException if there is no sample.
+     */
+    public synchronized void updateClock(final NtsClock clock) {
+        final long now = System.nanoTime();
+        clock.set(now, predictEpochNanos(now), errorBoundNanos(now), slope, getFrequencyErrorBound() + wanderRate);
+    }
+
+    private void checkSamples() {
+        if (size == 0) {
+            throw new IllegalStateException("No sample");
+        }
+    }
+
+}
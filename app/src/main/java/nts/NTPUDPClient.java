@@ -20,6 +20,7 @@ package nts;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.time.Instant;
 
 import org.apache.commons.net.DatagramSocketClient;
 
@@ -79,7 +80,7 @@ public final class NTPUDPClient extends DatagramSocketClient {
          * Must minimize the time between getting the current time, timestamping the packet, and sending it out which introduces an error in the delay time. No
          * extraneous logging and initializations here !!!
          */
-        final TimeStamp now = TimeStamp.getCurrentTime();
+        final TimeStamp now = TimeStamp.getPreciseCurrentTime();
 
         // Note that if you do not set the transmit time field then originating time
         // in server response is all 0's which is "Thu Feb 07 01:28:16 EST 2036".
@@ -88,13 +89,13 @@ public final class NTPUDPClient extends DatagramSocketClient {
         checkOpen().send(sendPacket);
         checkOpen().receive(receivePacket);
 
-        final long returnTimeMillis = System.currentTimeMillis();
+        final Instant returnTime = Instant.now();
 
         // Prevent invalid time information if response does not match request
         recMessage.validate(message);
 
         // create TimeInfo message container but don't pre-compute the details yet
-        return new TimeInfo(recMessage, returnTimeMillis, false);
+        return new TimeInfo(recMessage, returnTime, false);
     }
 
     /**
@@ -0,0 +1,445 @@
+package nts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import nts.NTSKERecords.Constants;
+
+/**
+ * On-disk store of NTS associations, so that a restarted process can send its first NTS request right away instead of
+ * running an NTS-KE handshake with each server first.
+ * <p>
+ * For each NTS-KE host the store keeps the C2S/S2C keys, the NTP server and the unused cookies of the last
+ * association, with the age of the keys and of each cookie. Ages are stored as wall-clock times, so they keep counting
+ * while the process is down; a step of the system clock shifts them. The file is an append-only log of checksummed
+ * records, the last record of a host winning; it is compacted when it holds more dead records than live ones, by
+ * writing a new file and renaming it over the old one. A torn record at the end, after a crash, is ignored.
+ * </p>
+ * <p>
+ * {@link NTSUDPClient#setAssociationStore(NTSAssociationStore)} wires the store to a client: a peer created for a
+ * server takes its association from the store if there is one, each new association is saved once its handshake
+ * completes, and {@link NTSUDPClient#saveAssociations()} saves the current cookies, which the client also does when it
+ * is closed. A restored association is used as is and renewed lazily, by the usual background handshake when its keys
+ * are too old or its cookies run low, or by a blocking one if the server sends a NAK. Taking an association removes it
+ * from the store, so that its cookies are loaded at most once. After a crash, the associations are restored as last
+ * saved, with cookies that may have been sent already: the server accepts them, but the requests that reuse them can
+ * be linked to the earlier ones. Saving periodically narrows that window.
+ * </p>
+ * <p>
+ * <b>Keys at rest.</b> The keys and cookies are written in clear: whoever reads the file can forge the responses of
+ * the servers to this client until the keys are renewed, and link its requests to each other. The file is created
+ * with owner-only permissions (rw-------) where the file system supports POSIX permissions, and those of an existing
+ * file are reduced to that when it is opened; elsewhere it inherits the access control of its directory, which should
+ * be private to the service account. It should not be placed on shared or backed-up storage. Records replaced or
+ * removed stay in the file until the next compaction and the old file is deleted, not overwritten, so the store is no
+ * substitute for disk encryption. Key age bounds the exposure: keys older than {@link NTSPeer#maxKeyAgeMillis} are
+ * renewed on first use.
+ * </p>
+ * <p>
+ * All methods are synchronized. Writes are forced to the disk; they happen once per handshake and once per server on
+ * save, not on each request.
+ * </p>
+ */
+public final class NTSAssociationStore implements Closeable {
+
+    private static final int MAGIC = 0x4E545341; // "NTSA"
+    private static final short VERSION = 1;
+    private static final int HEADER_LENGTH = 6;
+    private static final byte ASSOCIATION = 1;
+    private static final byte REMOVAL = 2;
+    /** Dead records tolerated before compacting, on top of one per live record. */
+    private static final int COMPACTION_SLACK = 64;
+    /** Length of the C2S and S2C keys of AEAD_AES_SIV_CMAC_256. */
+    private static final int KEY_LENGTH = 32;
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private final Path file;
+    // serialized associations by NTS-KE host, wiped when dropped
+    private final Map<String, byte[]> records = new HashMap<>();
+    private FileChannel channel;
+    private int deadRecords;
+
+    /**
+     * Opens the store, creating the file if it does not exist or is empty.
+     *
+     * @param file the file of the store.
+     * @throws IOException if the file cannot be created or read, or is not an association store.
+     */
+    public NTSAssociationStore(final Path file) throws IOException {
+        this.file = file;
+        if (!Files.exists(file) || Files.size(file) == 0) {
+            // written aside and renamed, so that a crash never leaves a file without its header
+            final Path temp = tempFile();
+            createFile(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            restrictPermissions(file);
+        }
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean complete;
+        try {
+            complete = load();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        if (!complete || deadRecords > records.size() + COMPACTION_SLACK) {
+            compact();
+        } else {
+            channel.position(channel.size());
+        }
+    }
+
+    private Path tempFile() throws IOException {
+        final Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(temp);
+        return temp;
+    }
+
+    /**
+     * Creates a file with owner-only permissions holding the header only.
+     */
+    private static void createFile(final Path file) throws IOException {
+        final FileAttribute<?>[] attributes = supportsPosix(file)
+                ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(OWNER_ONLY)}
+                : new FileAttribute<?>[0];
+        Files.createFile(file, attributes);
+        try (FileChannel header = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putShort(VERSION);
+            buffer.flip();
+            header.write(buffer);
+            header.force(true);
+        }
+    }
+
+    private static boolean supportsPosix(final Path file) {
+        final Path parent = file.toAbsolutePath().getParent();
+        return parent != null && parent.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static void restrictPermissions(final Path file) throws IOException {
+        if (supportsPosix(file) && !OWNER_ONLY.containsAll(Files.getPosixFilePermissions(file))) {
+            Files.setPosixFilePermissions(file, OWNER_ONLY);
+        }
+    }
+
+    /**
+     * Reads the whole log.
+     *
+     * @return false if the log ends with a torn or corrupt record.
+     */
+    private boolean load() throws IOException {
+        final long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("NTS association store too large: " + file);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) >= 0) {
+            // read fully
+        }
+        buffer.flip();
+        try {
+            if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC) {
+                throw new IOException("Not an NTS association store: " + file);
+            }
+            final short version = buffer.getShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported NTS association store version " + version + ": " + file);
+            }
+            final CRC32 crc = new CRC32();
+            while (buffer.remaining() >= 8) {
+                final int recordLength = buffer.getInt();
+                if (recordLength <= 0 || recordLength > buffer.remaining() - 4) {
+                    return false;
+                }
+                final byte[] record = new byte[recordLength];
+                buffer.get(record);
+                crc.reset();
+                crc.update(record);
+                if (buffer.getInt() != (int) crc.getValue()) {
+                    wipe(record);
+                    return false;
+                }
+                apply(record);
+            }
+            return !buffer.hasRemaining();
+        } finally {
+            wipe(buffer.array());
+        }
+    }
+
+    private void apply(final byte[] record) {
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        final byte kind = buffer.get();
+        final String host = getString(buffer);
+        final byte[] previous = kind == ASSOCIATION ? records.put(host, record) : records.remove(host);
+        if (previous != null) {
+            wipe(previous);
+            deadRecords++;
+        }
+        if (kind != ASSOCIATION) {
+            wipe(record);
+            deadRecords++;
+        }
+    }
+
+    /**
+     * @return the NTS-KE hosts with a stored association.
+     */
+    public synchronized List<String> getHosts() {
+        return new ArrayList<>(records.keySet());
+    }
+
+    /**
+     * Removes the association of an NTS-KE host from the store and returns it, with its cookies and the age of its keys
+     * restored. Its cookies that expired meanwhile are dropped by the cookie jar.
+     *
+     * @param keHost the NTS-KE host.
+     * @return the association, or null if none is stored.
+     * @throws IOException if the removal cannot be written.
+     */
+    public synchronized NTSConfig take(final String keHost) throws IOException {
+        final byte[] record = records.get(keHost);
+        if (record == null) {
+            return null;
+        }
+        final NTSConfig config;
+        try {
+            config = decode(record);
+        } finally {
+            remove(keHost);
+        }
+        return config;
+    }
+
+    /**
+     * Saves the association of an NTS-KE host, replacing the one stored. The cookies saved are the fresh ones left in
+     * the association; an association without cookies is removed instead.
+     *
+     * @param keHost the NTS-KE host.
+     * @param config the association.
+     * @throws IOException if the record cannot be written.
+     */
+    public synchronized void save(final String keHost, final NTSConfig config) throws IOException {
+        final List<byte[]> cookies = new ArrayList<>();
+        final long[] issuedNanos = config.cookies.export(cookies);
+        if (cookies.isEmpty() || config.C2SKey == null || config.S2CKey == null) {
+            remove(keHost);
+            return;
+        }
+        final byte[] record = encode(keHost, config, cookies, issuedNanos);
+        append(record);
+        final byte[] previous = records.put(keHost, record);
+        if (previous != null) {
+            wipe(previous);
+            deadRecords++;
+        }
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes the association of an NTS-KE host.
+     *
+     * @param keHost the NTS-KE host.
+     * @throws IOException if the removal cannot be written.
+     */
+    public synchronized void remove(final String keHost) throws IOException {
+        final byte[] previous = records.remove(keHost);
+        if (previous == null) {
+            return;
+        }
+        wipe(previous);
+        final byte[] host = keHost.getBytes(StandardCharsets.UTF_8);
+        append(ByteBuffer.allocate(3 + host.length).put(REMOVAL).putShort((short) host.length).put(host).array());
+        deadRecords += 2;
+        compactIfNeeded();
+    }
+
+    private static byte[] encode(final String keHost, final NTSConfig config, final List<byte[]> cookies, final long[] issuedNanos) {
+        final byte[] kh = keHost.getBytes(StandardCharsets.UTF_8);
+        final byte[] host = config.host == null ? new byte[0] : config.host.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + kh.length + 2 + host.length + 4 + 4 + 4 + 8 + 2 + config.C2SKey.length + 2 + config.S2CKey.length + 2;
+        for (final byte[] cookie : cookies) {
+            length += 8 + 2 + cookie.length;
+        }
+        // the keys are stored with the wall-clock time at which they were exported and each cookie received
+        final long nowMillis = System.currentTimeMillis();
+        final long nowNanos = System.nanoTime();
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.put(ASSOCIATION);
+        putBytes(buffer, kh);
+        putBytes(buffer, host);
+        buffer.putInt(config.port);
+        buffer.putInt(config.NTSProtocol == null ? -1 : config.NTSProtocol.getValue());
+        buffer.putInt(config.AEADAlgorithm == null ? -1 : config.AEADAlgorithm.getValue());
+        buffer.putLong(nowMillis - TimeUnit.NANOSECONDS.toMillis(nowNanos - config.getCreatedNanos()));
+        putBytes(buffer, config.C2SKey);
+        putBytes(buffer, config.S2CKey);
+        buffer.putShort((short) cookies.size());
+        for (int i = 0; i < cookies.size(); i++) {
+            buffer.putLong(nowMillis - TimeUnit.NANOSECONDS.toMillis(nowNanos - issuedNanos[i]));
+            putBytes(buffer, cookies.get(i));
+        }
+        return buffer.array();
+    }
+
+    private static NTSConfig decode(final byte[] record) throws IOException {
+        final long nowMillis = System.currentTimeMillis();
+        final long nowNanos = System.nanoTime();
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        try {
+            buffer.get();
+            getString(buffer);
+            final NTSConfig config = new NTSConfig();
+            final String host = getString(buffer);
+            config.host = host.isEmpty() ? null : host;
+            config.port = buffer.getInt();
+            final int protocol = buffer.getInt();
+            config.NTSProtocol = protocol < 0 ? null : Constants.NTSNextProtocols.fromValue(protocol);
+            final int algorithm = buffer.getInt();
+            config.AEADAlgorithm = algorithm < 0 ? null : Constants.AEADAlgorithms.fromValue(algorithm);
+            config.setCreatedNanos(nowNanos - ageNanos(nowMillis, buffer.getLong()));
+            config.C2SKey = getBytes(buffer);
+            config.S2CKey = getBytes(buffer);
+            if (config.C2SKey.length != KEY_LENGTH || config.S2CKey.length != KEY_LENGTH) {
+                throw new IOException("Corrupt NTS association record: keys of " + config.C2SKey.length + " and "
+                        + config.S2CKey.length + " bytes");
+            }
+            final int count = buffer.getShort() & 0xFFFF;
+            for (int i = 0; i < count; i++) {
+                final long issuedNanos = nowNanos - ageNanos(nowMillis, buffer.getLong());
+                config.cookies.add(getBytes(buffer), issuedNanos);
+            }
+            return config;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt NTS association record", e);
+        }
+    }
+
+    private static long ageNanos(final long nowMillis, final long epochMillis) {
+        // a clock stepped backwards makes the record look younger, not from the future
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, nowMillis - epochMillis));
+    }
+
+    private static void putBytes(final ByteBuffer buffer, final byte[] bytes) {
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static byte[] getBytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static String getString(final ByteBuffer buffer) {
+        final int length = buffer.getShort() & 0xFFFF;
+        final String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private void append(final byte[] record) throws IOException {
+        checkOpen();
+        final ByteBuffer framed = frame(record);
+        try {
+            while (framed.hasRemaining()) {
+                channel.write(framed);
+            }
+            channel.force(false);
+        } finally {
+            wipe(framed.array());
+        }
+    }
+
+    private static ByteBuffer frame(final byte[] record) {
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        final ByteBuffer framed = ByteBuffer.allocate(8 + record.length);
+        framed.putInt(record.length).put(record).putInt((int) crc.getValue());
+        framed.flip();
+        return framed;
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (deadRecords > records.size() + COMPACTION_SLACK) {
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites the file with the live records only.
+     *
+     * @throws IOException if the new file cannot be written.
+     */
+    public synchronized void compact() throws IOException {
+        checkOpen();
+        final Path temp = tempFile();
+        createFile(temp);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            for (final byte[] record : records.values()) {
+                final ByteBuffer framed = frame(record);
+                try {
+                    while (framed.hasRemaining()) {
+                        out.write(framed);
+                    }
+                } finally {
+                    wipe(framed.array());
+                }
+            }
+            out.force(true);
+        }
+        channel.close();
+        try {
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            deadRecords = 0;
+        } finally {
+            // the old file if the move failed, still valid
+            channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (channel == null) {
+            throw new IOException("NTS association store closed: " + file);
+        }
+    }
+
+    /**
+     * Closes the file and overwrites the associations held in memory.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (final byte[] record : records.values()) {
+            wipe(record);
+        }
+        records.clear();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private static void wipe(final byte[] bytes) {
+        Arrays.fill(bytes, (byte) 0);
+    }
+
+}
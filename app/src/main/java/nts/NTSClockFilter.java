@@ -0,0 +1,102 @@
+package nts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Clock filter over a burst of samples from one server, after the clock filter algorithm of RFC 5905 section 10.
+ * <p>
+ * The sample with the smallest round-trip delay is the one least disturbed by queueing in the network, so its offset
+ * is taken as the offset of the server. The jitter is the root mean square of the differences between the offsets of
+ * the other samples and the selected one. Samples without a delay or an offset are not used.
+ * </p>
+ */
+public final class NTSClockFilter {
+
+    private final List<TimeInfo> samples;
+    private final TimeInfo best;
+    private final double jitterNanos;
+
+    private NTSClockFilter(final List<TimeInfo> samples, final TimeInfo best, final double jitterNanos) {
+        this.samples = samples;
+        this.best = best;
+        this.jitterNanos = jitterNanos;
+    }
+
+    /**
+     * Selects the minimum delay sample of a burst.
+     *
+     * @param samples the responses of the server, their details are computed if needed.
+     * @return the filter result.
+     * @throws IllegalArgumentException if no sample has both a delay and an offset.
+     */
+    public static NTSClockFilter select(final List<TimeInfo> samples) {
+        final List<TimeInfo> usable = new ArrayList<>(samples.size());
+        for (final TimeInfo sample : samples) {
+            sample.computeDetails();
+            if (sample.getDelayNanos() != null && sample.getOffsetNanos() != null) {
+                usable.add(sample);
+            }
+        }
+        if (usable.isEmpty()) {
+            throw new IllegalArgumentException("No sample with a delay and an offset among " + samples.size());
+        }
+        usable.sort(Comparator.comparingLong(TimeInfo::getDelayNanos));
+        final TimeInfo best = usable.get(0);
+
+        double jitter = 0;
+        if (usable.size() > 1) {
+            double sum = 0;
+            for (int i = 1; i < usable.size(); i++) {
+                final double diff = usable.get(i).getOffsetNanos() - best.getOffsetNanos();
+                sum += diff * diff;
+            }
+            jitter = Math.sqrt(sum / (usable.size() - 1));
+        }
+        return new NTSClockFilter(Collections.unmodifiableList(usable), best, jitter);
+    }
+
+    /**
+     * @return the sample with the smallest delay.
+     */
+    public TimeInfo getBest() {
+        return best;
+    }
+
+    /**
+     * @return the clock offset of the selected sample in nanoseconds.
+     */
+    public long getOffsetNanos() {
+        return best.getOffsetNanos();
+    }
+
+    /**
+     * @return the round-trip delay of the selected sample in nanoseconds.
+     */
+    public long getDelayNanos() {
+        return best.getDelayNanos();
+    }
+
+    /**
+     * @return the jitter of the offsets in nanoseconds, 0 with a single sample.
+     */
+    public double getJitterNanos() {
+        return jitterNanos;
+    }
+
+    /**
+     * @return the samples used, by increasing delay.
+     */
+    public List<TimeInfo> getSamples() {
+        return samples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NTSClockFilter { samples: %d, offset: %.3f ms, delay: %.3f ms, jitter: %.3f ms }",
+                samples.size(), getOffsetNanos() / 1e6, getDelayNanos() / 1e6, jitterNanos / 1e6);
+    }
+
+}
@@ -1,23 +1,28 @@
 package nts;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import nts.NTSKERecords.*;
 
 public class NTSConfig {
     public Constants.NTSNextProtocols NTSProtocol;
     public Constants.AEADAlgorithms AEADAlgorithm;
-    public List<byte[]> cookies = new ArrayList<>();
+    /** Cookies of the association, each one is handed out to a single request. */
+    public final NTSCookieJar cookies = new NTSCookieJar();
     public String host;
     public int port;
     public byte[] C2SKey;
     public byte[] S2CKey;
+    private volatile NTSCryptoContext cryptoContext;
+    private volatile long createdNanos = System.nanoTime();
 
     public NTSConfig(Constants.NTSNextProtocols NTSProtocol, Constants.AEADAlgorithms AEADAlgorithm, List<byte[]> cookies, String host, int port, byte[] C2SKey, byte[] S2CKey) {
         this.NTSProtocol = NTSProtocol;
         this.AEADAlgorithm = AEADAlgorithm;
-        this.cookies = cookies;
+        this.cookies.addAll(cookies);
         this.host = host;
         this.port = port;
         this.C2SKey = C2SKey;
@@ -28,6 +33,111 @@ public class NTSConfig {
         // Default constructor
     }
 
+    /**
+     * Removes the freshest cookie of the association.
+     *
+     * @return the cookie to use in the next request.
+     * @throws IllegalStateException if there are no fresh cookies left.
+     */
+    public byte[] takeCookie() {
+        byte[] cookie = cookies.take();
+        if (cookie == null) {
+            throw new IllegalStateException("No fresh NTS cookies left for " + host);
+        }
+        return cookie;
+    }
+
+    /**
+     * @return the number of cookies to request to refill the backlog, counting the one replacing the cookie in use.
+     */
+    public int getCookiesNeeded() {
+        return cookies.getCookiesNeeded();
+    }
+
+    /**
+     * Ends the reservation of a request, whether or not it got its cookies.
+     *
+     * @param requested the number of cookies reserved for the request, {@link NTSPeer.ReadyConfig#requestedCookies}.
+     */
+    public void releaseRequestedCookies(int requested) {
+        cookies.release(requested);
+    }
+
+    /**
+     * Stores cookies received from the server.
+     *
+     * @param newCookies the cookies to add.
+     */
+    public void addCookies(List<byte[]> newCookies) {
+        cookies.addAll(newCookies);
+    }
+
+    /**
+     * Overwrites the keys and cookies of this association. It cannot be used for new requests afterwards.
+     */
+    public void destroy() {
+        cookies.clear();
+        if (C2SKey != null) {
+            Arrays.fill(C2SKey, (byte) 0);
+        }
+        if (S2CKey != null) {
+            Arrays.fill(S2CKey, (byte) 0);
+        }
+    }
+
+    /**
+     * @return the time in milliseconds since this association was created, i.e. since its keys were exported.
+     */
+    public long getAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - createdNanos);
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the keys were exported.
+     */
+    long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /**
+     * Backdates the association, e.g. when it is restored from an {@link NTSAssociationStore}.
+     *
+     * @param createdNanos the {@link System#nanoTime()} at which the keys were exported.
+     */
+    void setCreatedNanos(long createdNanos) {
+        this.createdNanos = createdNanos;
+    }
+
+    /**
+     * Returns the AEADs for this association, building them from the C2S/S2C keys the first time they are needed.
+     * The context is rebuilt only if the keys are replaced, the common path takes no lock.
+     *
+     * @return the crypto context shared by all requests and responses of this association.
+     */
+    public NTSCryptoContext getCryptoContext() {
+        NTSCryptoContext context = cryptoContext;
+        if (context != null && context.isFor(C2SKey, S2CKey)) {
+            return context;
+        }
+        synchronized (this) {
+            context = cryptoContext;
+            if (context == null || !context.isFor(C2SKey, S2CKey)) {
+                context = new NTSCryptoContext(C2SKey, S2CKey);
+                cryptoContext = context;
+            }
+            return context;
+        }
+    }
+
+    /**
+     * Sets the crypto context for this association, e.g. one already built by the NTS-KE handshake.
+     *
+     * @param cryptoContext the context built from the current C2S/S2C keys.
+     */
+    public void setCryptoContext(NTSCryptoContext cryptoContext) {
+        this.cryptoContext = cryptoContext;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -35,11 +145,9 @@ public class NTSConfig {
           .append("\n  NTSProtocol: ").append(NTSProtocol)
           .append("\n  AEADAlgorithm: ").append(AEADAlgorithm)
           .append("\n  cookies: [");
-        if (cookies != null) {
-            for (int i = 0; i < cookies.size(); i++) {
-                sb.append(bytesToHex(cookies.get(i)));
-                if (i < cookies.size() - 1) sb.append(", ");
-            }
+        for (Iterator<byte[]> it = cookies.toList().iterator(); it.hasNext(); ) {
+            sb.append(bytesToHex(it.next()));
+            if (it.hasNext()) sb.append(", ");
         }
         sb.append("]")
           .append("\n  host: ").append(host)
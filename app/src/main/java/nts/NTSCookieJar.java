@@ -0,0 +1,279 @@
+package nts;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded store of the NTS cookies of one association (RFC 8915 section 5.7).
+ * <p>
+ * Cookies are kept in a ring buffer together with the time they were received, so taking and adding a cookie are
+ * O(1). {@link #take()} always returns the freshest cookie, which is the least likely to have been made invalid by a
+ * server key rotation. Cookies older than the maximum age are dropped instead of being sent, avoiding a NAK and the
+ * NTS-KE round trips that follow it. When the jar is full, adding a cookie drops the oldest one.
+ * </p>
+ * <p>
+ * Ages are measured with {@link System#nanoTime()}. All methods are synchronized on the jar, each association has its
+ * own jar so requests to different servers never contend.
+ * </p>
+ */
+public final class NTSCookieJar {
+
+    /** Default number of cookies the client tries to keep for each association. */
+    public static final int DEFAULT_CAPACITY = 8;
+
+    /** Default age after which a cookie is assumed to be rejected by the server. */
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private byte[][] cookies;
+    private long[] issuedNanos;
+    private int oldest;
+    private int size;
+    private int requested; // cookies asked for by the requests in flight
+    private long maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_AGE_MILLIS);
+
+    /**
+     * Creates a jar with the {@link #DEFAULT_CAPACITY default capacity}.
+     */
+    public NTSCookieJar() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of cookies kept.
+     */
+    public NTSCookieJar(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cookie jar capacity must be at least 1: " + capacity);
+        }
+        cookies = new byte[capacity][];
+        issuedNanos = new long[capacity];
+    }
+
+    /**
+     * @return the maximum number of cookies kept.
+     */
+    public synchronized int getCapacity() {
+        return cookies.length;
+    }
+
+    /**
+     * Changes the maximum number of cookies kept. When shrinking, the oldest cookies are dropped.
+     *
+     * @param capacity maximum number of cookies kept.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cookie jar capacity must be at least 1: " + capacity);
+        }
+        byte[][] newCookies = new byte[capacity][];
+        long[] newIssuedNanos = new long[capacity];
+        int kept = Math.min(size, capacity);
+        for (int i = 0; i < kept; i++) {
+            int idx = index(size - kept + i);
+            newCookies[i] = cookies[idx];
+            newIssuedNanos[i] = issuedNanos[idx];
+        }
+        for (int i = 0; i < size - kept; i++) {
+            wipe(cookies[index(i)]);
+        }
+        cookies = newCookies;
+        issuedNanos = newIssuedNanos;
+        oldest = 0;
+        size = kept;
+    }
+
+    /**
+     * @return the age in milliseconds after which a cookie is dropped instead of being used.
+     */
+    public synchronized long getMaxAgeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxAgeNanos);
+    }
+
+    /**
+     * Sets the age after which a cookie is dropped instead of being used. It should be shorter than the key rotation
+     * period of the server.
+     *
+     * @param maxAgeMillis maximum age in milliseconds.
+     */
+    public synchronized void setMaxAgeMillis(long maxAgeMillis) {
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    /**
+     * Stores a cookie received now.
+     *
+     * @param cookie the cookie.
+     */
+    public void add(byte[] cookie) {
+        add(cookie, System.nanoTime());
+    }
+
+    /**
+     * Stores a cookie received at the given time. Cookies are expected to be added in the order they were received.
+     *
+     * @param cookie        the cookie.
+     * @param issuedAtNanos the {@link System#nanoTime()} at which the cookie was received.
+     */
+    public synchronized void add(byte[] cookie, long issuedAtNanos) {
+        int idx;
+        if (size == cookies.length) {
+            // Full, the new cookie replaces the oldest one
+            idx = oldest;
+            wipe(cookies[idx]);
+            oldest = index(1);
+        } else {
+            idx = index(size);
+            size++;
+        }
+        cookies[idx] = cookie;
+        issuedNanos[idx] = issuedAtNanos;
+    }
+
+    /**
+     * Stores cookies received now.
+     *
+     * @param newCookies the cookies.
+     */
+    public synchronized void addAll(List<byte[]> newCookies) {
+        long now = System.nanoTime();
+        for (byte[] cookie : newCookies) {
+            add(cookie, now);
+        }
+    }
+
+    /**
+     * Removes and returns the freshest cookie, after dropping the stale ones.
+     *
+     * @return the cookie to use in the next request, or null if there are no fresh cookies left.
+     */
+    public synchronized byte[] take() {
+        dropStale(System.nanoTime());
+        if (size == 0) {
+            return null;
+        }
+        int idx = index(size - 1);
+        byte[] cookie = cookies[idx];
+        cookies[idx] = null;
+        size--;
+        return cookie;
+    }
+
+    /**
+     * @return the number of fresh cookies.
+     */
+    public synchronized int size() {
+        dropStale(System.nanoTime());
+        return size;
+    }
+
+    /**
+     * @return true if there are no fresh cookies.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return the number of cookies needed to fill the jar.
+     */
+    public synchronized int getCookiesNeeded() {
+        return cookies.length - size();
+    }
+
+    /**
+     * Reserves room for the cookies a new request asks for, counting those the requests in flight will bring back, so
+     * that concurrent responses never overfill the jar. The reservation ends with {@link #release(int)} once the request
+     * is over, after its cookies, if any, were added. It must be called while holding the lock of the jar together
+     * with the {@link #take()} of the cookie of the request, otherwise a request taking its cookie in between is not
+     * counted and the jar overflows.
+     *
+     * @return the number of cookies to request, at least 1 for the one replacing the cookie in use.
+     */
+    public synchronized int reserve() {
+        int count = Math.max(1, cookies.length - size() - requested);
+        requested += count;
+        return count;
+    }
+
+    /**
+     * Ends the reservation of a request.
+     *
+     * @param count the number of cookies reserved for the request.
+     */
+    public synchronized void release(int count) {
+        requested = Math.max(0, requested - count);
+    }
+
+    /**
+     * @return the age in milliseconds of the freshest cookie, or -1 if the jar is empty.
+     */
+    public synchronized long getFreshestAgeMillis() {
+        if (size() == 0) {
+            return -1;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - issuedNanos[index(size - 1)]);
+    }
+
+    /**
+     * @return a copy of the list of fresh cookies, from the oldest to the freshest.
+     */
+    public synchronized List<byte[]> toList() {
+        dropStale(System.nanoTime());
+        List<byte[]> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(cookies[index(i)]);
+        }
+        return list;
+    }
+
+    /**
+     * Copies the fresh cookies, from the oldest to the freshest, and returns the times they were received.
+     *
+     * @param out the list receiving the cookies.
+     * @return the {@link System#nanoTime()} at which each cookie was received, in the same order.
+     */
+    synchronized long[] export(List<byte[]> out) {
+        dropStale(System.nanoTime());
+        long[] issued = new long[size];
+        for (int i = 0; i < size; i++) {
+            out.add(cookies[index(i)]);
+            issued[i] = issuedNanos[index(i)];
+        }
+        return issued;
+    }
+
+    /**
+     * Drops all the cookies and overwrites their contents.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < size; i++) {
+            int idx = index(i);
+            wipe(cookies[idx]);
+            cookies[idx] = null;
+        }
+        oldest = 0;
+        size = 0;
+    }
+
+    private void dropStale(long now) {
+        while (size > 0 && now - issuedNanos[oldest] > maxAgeNanos) {
+            wipe(cookies[oldest]);
+            cookies[oldest] = null;
+            oldest = index(1);
+            size--;
+        }
+    }
+
+    private int index(int i) {
+        return (oldest + i) % cookies.length;
+    }
+
+    private static void wipe(byte[] cookie) {
+        if (cookie != null) {
+            Arrays.fill(cookie, (byte) 0);
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+package nts;
+
+import com.google.crypto.tink.InsecureSecretKeyAccess;
+import com.google.crypto.tink.util.SecretBytes;
+import com.google.crypto.tink.daead.AesSivParameters;
+import com.google.crypto.tink.daead.AesSivKey;
+import com.google.crypto.tink.daead.subtle.DeterministicAeads;
+import com.google.crypto.tink.subtle.AesSiv;
+
+/**
+ * Holds the AEAD primitives derived from the keys of one NTS association.
+ * The AES-SIV key schedule is computed once per NTS-KE handshake and the resulting primitives are shared by every
+ * request and response exchanged with that association. Tink primitives are thread-safe, so a context can be used
+ * concurrently.
+ */
+public final class NTSCryptoContext {
+
+    private final DeterministicAeads c2sAead;
+    private final DeterministicAeads s2cAead;
+    private final byte[] c2sKey;
+    private final byte[] s2cKey;
+
+    /**
+     * Creates the client-to-server and server-to-client AEADs from the keys exported during the NTS-KE handshake.
+     *
+     * @param C2SKey the client-to-server key.
+     * @param S2CKey the server-to-client key.
+     */
+    public NTSCryptoContext(byte[] C2SKey, byte[] S2CKey) {
+        this.c2sAead = createAesSiv(C2SKey);
+        this.s2cAead = createAesSiv(S2CKey);
+        this.c2sKey = C2SKey;
+        this.s2cKey = S2CKey;
+    }
+
+    /**
+     * @return true if this context was built from these very key arrays.
+     */
+    boolean isFor(byte[] C2SKey, byte[] S2CKey) {
+        return c2sKey == C2SKey && s2cKey == S2CKey;
+    }
+
+    /**
+     * Builds an AES-SIV-CMAC-256 deterministic AEAD from a raw 32 byte key.
+     *
+     * @param key the raw key bytes.
+     * @return the AEAD primitive.
+     */
+    public static DeterministicAeads createAesSiv(byte[] key) {
+        try {
+            AesSivParameters AES_SIV_PARAMETERS = AesSivParameters.builder()
+                    .setKeySizeBytes(32)
+                    .setVariant(AesSivParameters.Variant.NO_PREFIX)
+                    .build();
+            SecretBytes keyBytes = SecretBytes.copyFrom(key, InsecureSecretKeyAccess.get());
+
+            AesSivKey aesSivkey = AesSivKey.builder().setParameters(AES_SIV_PARAMETERS).setKeyBytes(keyBytes).build();
+            return AesSiv.create(aesSivkey);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to create AES SIV KEY: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the AEAD used to protect requests sent to the server.
+     */
+    public DeterministicAeads getC2SAead() {
+        return c2sAead;
+    }
+
+    /**
+     * @return the AEAD used to verify and decrypt responses from the server.
+     */
+    public DeterministicAeads getS2CAead() {
+        return s2cAead;
+    }
+
+}
@@ -0,0 +1,440 @@
+package nts;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nts.NTSExtensionFields.FieldType;
+import nts.NTSExtensionFields.NTSExtensionFieldCursor;
+
+/**
+ * Non-blocking NTS engine that keeps many requests in flight on a single {@link DatagramChannel}.
+ * <p>
+ * Requests are built on the caller thread and handed to a single I/O thread, which timestamps, authenticates and sends
+ * them, and waits on a {@link Selector} for the responses. The responses queued on the channel are all read and
+ * timestamped before any of them is processed, so that their arrival times do not include the processing of the others.
+ * Each response is matched to its request by the NTS Unique Identifier Extension Field, which the server echoes back,
+ * then verified and decrypted on the I/O thread. Requests that get no answer before their deadline fail with a
+ * {@link SocketTimeoutException}. Responses that fail authentication are dropped and the request keeps waiting for a
+ * genuine one. No thread is used per request.
+ * </p>
+ */
+public final class NTSDatagramEngine implements Closeable {
+
+    private static final int MAX_DATAGRAM_SIZE = 65507;
+    private static final int RECEIVE_BUFFER_SIZE = 1 << 20;
+    /** Datagrams read and stamped before any of them is processed. */
+    private static final int RECEIVE_BATCH = 64;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread ioThread;
+
+    private final Queue<Pending> submitted = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    // Only accessed from the I/O thread
+    private final ArrayDeque<Pending> sendQueue = new ArrayDeque<>();
+    private final Map<ByteBuffer, Pending> pending = new HashMap<>();
+    private final PriorityQueue<Pending> deadlines = new PriorityQueue<>((a, b) -> Long.compare(a.deadlineNanos, b.deadlineNanos));
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_DATAGRAM_SIZE);
+    private final Received[] receiveBatch = new Received[RECEIVE_BATCH];
+
+    private volatile boolean closed;
+
+    private static final class Pending {
+        final NTSPeer peer;
+        final NTSConfig ntsConfig;
+        final NtsImpl request;
+        final ByteBuffer uniqueIdentifier;
+        final InetSocketAddress target;
+        final long deadlineNanos;
+        final CompletableFuture<TimeInfo> future = new CompletableFuture<>();
+        // unauthenticated NAK received, reported only if no authenticated response comes before the deadline
+        NtsNakException nak;
+
+        Pending(NTSPeer peer, NTSConfig ntsConfig, NtsImpl request, ByteBuffer uniqueIdentifier, InetSocketAddress target, long deadlineNanos) {
+            this.peer = peer;
+            this.ntsConfig = ntsConfig;
+            this.request = request;
+            this.uniqueIdentifier = uniqueIdentifier;
+            this.target = target;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    /**
+     * A datagram read from the channel, with the time it was read.
+     */
+    private static final class Received {
+        final SocketAddress from;
+        final byte[] data;
+        final int length;
+        final Instant returnTime;
+        final long receivedNanos;
+
+        Received(SocketAddress from, ByteBuffer buffer, Instant returnTime, long receivedNanos) {
+            this.from = from;
+            this.length = buffer.remaining();
+            this.data = new byte[length];
+            buffer.get(data);
+            this.returnTime = returnTime;
+            this.receivedNanos = receivedNanos;
+        }
+    }
+
+    /**
+     * Opens the channel on an ephemeral port and starts the I/O thread.
+     *
+     * @throws IOException if the channel or the selector cannot be opened.
+     */
+    public NTSDatagramEngine() throws IOException {
+        selector = Selector.open();
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        // Responses to a burst of requests arrive together, a default sized buffer would drop some of them
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_SIZE);
+        channel.bind(null);
+        channel.register(selector, SelectionKey.OP_READ);
+
+        ioThread = new Thread(this::run, "nts-datagram-engine");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * @return the number of requests submitted and not yet completed.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the local port of the channel.
+     * @throws IOException if the channel is closed.
+     */
+    public int getLocalPort() throws IOException {
+        return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Sends an authenticated request to an NTS server. The calling thread never blocks: if the peer has no usable
+     * association, the request waits for its NTS-KE handshake, which runs on the handshake executor of the peer, and is
+     * sent once it completes.
+     *
+     * @param peer          the NTS peer, its current configuration provides the keys and the cookie.
+     * @param host          the address of the server.
+     * @param port          the port of the service.
+     * @param timeoutMillis time to wait for the handshake, if any, and the response, 0 to wait forever.
+     * @return a future completed with the verified time information, or exceptionally with a {@link SocketTimeoutException},
+     *         an {@link NtsNakException}, an {@link AuthenticationFailureException} or an {@link IOException}.
+     */
+    public CompletableFuture<TimeInfo> getTime(final NTSPeer peer, final InetAddress host, final int port, final long timeoutMillis) {
+        final NTSPeer.ReadyConfig ready = peer.tryGetReadyConfig();
+        if (ready != null) {
+            return send(peer, ready, host, port, timeoutMillis);
+        }
+        final long deadline = NTSDeadline.after(timeoutMillis);
+        CompletableFuture<NTSConfig> handshake = peer.refreshAsync().copy();
+        if (timeoutMillis > 0) {
+            handshake = handshake.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return handshake.handle((config, error) -> {
+            final String what = "NTS request to " + host.getHostAddress();
+            try {
+                if (error instanceof TimeoutException || error != null && error.getCause() instanceof TimeoutException) {
+                    throw new SocketTimeoutException("NTS-KE handshake with " + peer.KEHost + " timed out");
+                }
+                final long remainingMillis = NTSDeadline.remainingMillis(deadline, what);
+                // Other requests may have taken the new cookies already, this one does not wait for another handshake
+                final NTSPeer.ReadyConfig next = config != null ? peer.tryGetReadyConfig() : null;
+                if (next == null) {
+                    throw new IOException("No usable NTS association with " + peer.KEHost + ", the NTS-KE handshake failed");
+                }
+                return send(peer, next, host, port, remainingMillis);
+            } catch (IOException e) {
+                return CompletableFuture.<TimeInfo>failedFuture(e);
+            }
+        }).thenCompose(request -> request);
+    }
+
+    private CompletableFuture<TimeInfo> send(final NTSPeer peer, final NTSPeer.ReadyConfig ready, final InetAddress host, final int port,
+            final long timeoutMillis) {
+        final NTSConfig ntsConfig;
+        final NtsImpl message;
+        final int requested;
+        try {
+            ntsConfig = ready.config;
+            requested = ready.requestedCookies;
+            try {
+                if (closed) {
+                    throw new IOException("NTS datagram engine is closed");
+                }
+                message = new NtsImpl(ntsConfig.getCryptoContext().getC2SAead());
+                message.buildRequest(ready.cookie, requested);
+            } catch (IOException | RuntimeException e) {
+                ntsConfig.releaseRequestedCookies(requested);
+                throw e;
+            }
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        final DatagramPacket packet = message.getDatagramPacket();
+        // A timeout of 0 means no timeout, like for DatagramSocket
+        final long timeoutNanos = timeoutMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : Long.MAX_VALUE / 2;
+        final Pending request = new Pending(peer, ntsConfig, message, findUniqueIdentifier(packet.getData(), packet.getLength()),
+                new InetSocketAddress(host, port), System.nanoTime() + timeoutNanos);
+        inFlight.incrementAndGet();
+        request.future.whenComplete((info, error) -> {
+            inFlight.decrementAndGet();
+            // after the response, if any, stored its cookies
+            ntsConfig.releaseRequestedCookies(requested);
+        });
+        submitted.add(request);
+        selector.wakeup();
+        if (closed) {
+            request.future.completeExceptionally(new IOException("NTS datagram engine is closed"));
+        }
+        return request.future;
+    }
+
+    /**
+     * Locates the body of the Unique Identifier Extension Field without copying it.
+     *
+     * @return a view over the unique identifier, usable as a map key, or null if absent.
+     */
+    private static ByteBuffer findUniqueIdentifier(final byte[] buf, final int length) {
+        final NTSExtensionFieldCursor cursor = new NTSExtensionFieldCursor(buf, NTSRequestBuilder.NTP_HEADER_LENGTH, length);
+        while (cursor.next()) {
+            if (cursor.is(FieldType.UNIQUE_IDENTIFIER)) {
+                return ByteBuffer.wrap(cursor.getBuffer(), cursor.getBodyOffset(), cursor.getBodyLength());
+            }
+        }
+        return null;
+    }
+
+    private void run() {
+        try {
+            while (!closed) {
+                long timeoutMillis = 0;
+                Pending next = deadlines.peek();
+                if (next != null) {
+                    timeoutMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.deadlineNanos - System.nanoTime()));
+                }
+                selector.select(timeoutMillis);
+                selector.selectedKeys().clear();
+
+                drainSubmitted();
+                sendQueued();
+                receiveAll();
+                expire();
+            }
+        } catch (ClosedSelectorException e) {
+            // closed
+        } catch (IOException | RuntimeException e) {
+            failAll(e);
+        }
+        failAll(new IOException("NTS datagram engine is closed"));
+    }
+
+    private void drainSubmitted() {
+        Pending request;
+        while ((request = submitted.poll()) != null) {
+            if (request.future.isDone()) {
+                continue;
+            }
+            if (request.uniqueIdentifier == null || pending.putIfAbsent(request.uniqueIdentifier, request) != null) {
+                request.future.completeExceptionally(new IOException("Request without a valid unique identifier"));
+                continue;
+            }
+            deadlines.add(request);
+            sendQueue.add(request);
+        }
+    }
+
+    private void sendQueued() throws IOException {
+        Pending request;
+        while ((request = sendQueue.peek()) != null) {
+            if (request.future.isDone()) {
+                sendQueue.poll();
+                continue;
+            }
+            final NtsImpl message = request.request;
+            final DatagramPacket packet = message.getDatagramPacket();
+
+            /*
+             * Must minimize the time between getting the current time, timestamping the packet, and sending it out which introduces an error in the delay
+             * time. No extraneous logging and initializations here !!!
+             */
+            final int sent;
+            try {
+                message.setTransmitTime(TimeStamp.getPreciseCurrentTime());
+                message.createAuthAndEncEF();
+                sent = channel.send(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()), request.target);
+            } catch (IOException | RuntimeException e) {
+                sendQueue.poll();
+                request.future.completeExceptionally(e);
+                continue;
+            }
+            if (sent == 0) {
+                // Socket buffer full, retry when writable. The packet is timestamped again then.
+                channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            sendQueue.poll();
+        }
+        channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+    }
+
+    private void receiveAll() throws IOException {
+        int count;
+        do {
+            // The queued datagrams are all read and stamped first, so that the t4 of a response does not include the
+            // matching, verification and decryption of the responses queued before it
+            count = 0;
+            while (count < RECEIVE_BATCH) {
+                receiveBuffer.clear();
+                final SocketAddress from = channel.receive(receiveBuffer);
+                if (from == null) {
+                    break;
+                }
+                final Instant returnTime = Instant.now();
+                final long receivedNanos = System.nanoTime();
+                receiveBuffer.flip();
+                receiveBatch[count++] = new Received(from, receiveBuffer, returnTime, receivedNanos);
+            }
+            for (int i = 0; i < count; i++) {
+                handleResponse(receiveBatch[i]);
+                receiveBatch[i] = null;
+            }
+        } while (count == RECEIVE_BATCH);
+    }
+
+    private void handleResponse(final Received received) {
+        final SocketAddress from = received.from;
+        final byte[] data = received.data;
+        final int length = received.length;
+        if (length < NTSRequestBuilder.NTP_HEADER_LENGTH) {
+            return;
+        }
+
+        final ByteBuffer uniqueIdentifier;
+        try {
+            uniqueIdentifier = findUniqueIdentifier(data, length);
+        } catch (IllegalArgumentException e) {
+            return; // malformed, not ours
+        }
+        if (uniqueIdentifier == null) {
+            return;
+        }
+        final Pending request = pending.get(uniqueIdentifier);
+        if (request == null || !request.target.equals(from)) {
+            return; // late, duplicated or spoofed
+        }
+
+        final NtsImpl recMessage = new NtsImpl(request.ntsConfig.getCryptoContext().getS2CAead());
+        final DatagramPacket receivePacket = recMessage.getDatagramPacket((length + 3) & ~3);
+        System.arraycopy(data, 0, receivePacket.getData(), 0, length);
+        receivePacket.setLength(length);
+        receivePacket.setSocketAddress(from);
+
+        try {
+            recMessage.validate(request.request);
+            pending.remove(uniqueIdentifier);
+            request.peer.nakReceived = false;
+            request.ntsConfig.addCookies(recMessage.getNewCookies());
+        } catch (AuthenticationFailureException e) {
+            // Anyone who saw the request can forge a response with its unique identifier, keep waiting for the real one
+            return;
+        } catch (NtsNakException e) {
+            // A NAK is not authenticated either: keep waiting for a real response, acted upon at the deadline only
+            request.nak = e;
+            return;
+        } catch (Exception e) {
+            pending.remove(uniqueIdentifier);
+            request.future.completeExceptionally(e);
+            return;
+        }
+
+        // create TimeInfo message container but don't pre-compute the details yet
+        final TimeInfo info = new TimeInfo(recMessage, received.returnTime, false);
+        info.setProcessingNanos(System.nanoTime() - received.receivedNanos);
+        request.future.complete(info);
+    }
+
+    private void expire() {
+        final long now = System.nanoTime();
+        Pending request;
+        while ((request = deadlines.peek()) != null) {
+            if (request.future.isDone()) {
+                deadlines.poll();
+                pending.remove(request.uniqueIdentifier, request);
+                continue;
+            }
+            if (request.deadlineNanos - now > 0) {
+                return;
+            }
+            deadlines.poll();
+            pending.remove(request.uniqueIdentifier, request);
+            if (request.nak != null) {
+                // RFC8915: store the fact that a NAK has been received, a new handshake starts in the background
+                request.peer.reportNak();
+                request.future.completeExceptionally(request.nak);
+            } else {
+                request.future.completeExceptionally(new SocketTimeoutException("No NTS response from " + request.target));
+            }
+        }
+    }
+
+    private void failAll(final Throwable cause) {
+        for (Pending request : pending.values()) {
+            request.future.completeExceptionally(cause);
+        }
+        pending.clear();
+        deadlines.clear();
+        sendQueue.clear();
+        Pending request;
+        while ((request = submitted.poll()) != null) {
+            request.future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Stops the I/O thread and closes the channel. Requests in flight fail with an {@link IOException}.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            ioThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        selector.close();
+        channel.close();
+    }
+
+}
@@ -0,0 +1,70 @@
+package nts;
+
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Helpers for the per-call deadlines of the NTS-KE and NTP exchanges. A deadline is a {@link System#nanoTime()} value,
+ * or {@link #NONE}; each blocking step (connect, handshake, read, receive) gets the time remaining until it.
+ */
+final class NTSDeadline {
+
+    /** No deadline, blocking steps wait forever. */
+    static final long NONE = Long.MAX_VALUE;
+
+    private NTSDeadline() {
+    }
+
+    /**
+     * @param timeoutMillis the time allowed from now, 0 or less for no deadline.
+     * @return the deadline.
+     */
+    static long after(long timeoutMillis) {
+        return timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : NONE;
+    }
+
+    /**
+     * Returns the time left as a socket timeout.
+     *
+     * @param deadline the deadline.
+     * @param what     what is being waited for, for the exception message.
+     * @return the milliseconds left, at least 1, or 0 if there is no deadline.
+     * @throws SocketTimeoutException if the deadline has passed.
+     */
+    static int remainingMillis(long deadline, String what) throws SocketTimeoutException {
+        if (deadline == NONE) {
+            return 0;
+        }
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            throw new SocketTimeoutException(what + " timed out");
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+    }
+
+    /**
+     * Waits for a future until the deadline.
+     *
+     * @throws SocketTimeoutException if the deadline passes first.
+     * @throws InterruptedIOException if the thread is interrupted.
+     * @throws ExecutionException if the future completed exceptionally.
+     */
+    static <T> T await(CompletableFuture<T> future, long deadline, String what) throws SocketTimeoutException, InterruptedIOException, ExecutionException {
+        try {
+            if (deadline == NONE) {
+                return future.get();
+            }
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            throw new SocketTimeoutException(what + " timed out");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(what + " interrupted");
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package nts;
+
+import java.security.SecureRandom;
+
+/**
+ * Source of the random unique identifiers and nonces placed in NTS requests.
+ * <p>
+ * A single {@link SecureRandom} is seeded once and shared by all threads. Each thread draws from its own prefilled
+ * buffer, which is refilled in one batch when exhausted, so building a request neither instantiates a DRBG nor
+ * allocates. A different generator (e.g. a specific DRBG or a deterministic one for tests) can be plugged in through
+ * the constructor and installed with {@link #setDefault(NTSEntropySource)}.
+ * </p>
+ */
+public class NTSEntropySource {
+
+    /** Length of the Unique Identifier extension field body. */
+    public static final int UNIQUE_IDENTIFIER_LENGTH = 32;
+
+    /** Length of the AES-SIV nonce used in the NTS Authenticator and Encrypted extension field. */
+    public static final int NONCE_LENGTH = 16;
+
+    /** Default size of the per-thread buffer, enough for 64 requests (UID and nonce) per refill. */
+    public static final int DEFAULT_BUFFER_SIZE = 64 * (UNIQUE_IDENTIFIER_LENGTH + NONCE_LENGTH);
+
+    private static volatile NTSEntropySource defaultSource;
+
+    private final SecureRandom random;
+    private final int bufferSize;
+    private final ThreadLocal<Buffer> buffers = ThreadLocal.withInitial(this::newBuffer);
+
+    private static final class Buffer {
+        final byte[] bytes;
+        int position;
+
+        Buffer(int size) {
+            bytes = new byte[size];
+            position = size;
+        }
+    }
+
+    /**
+     * Creates an entropy source backed by a default {@link SecureRandom}.
+     */
+    public NTSEntropySource() {
+        this(new SecureRandom(), DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates an entropy source backed by the given generator.
+     *
+     * @param random     the generator, shared by all threads. Must be thread-safe.
+     * @param bufferSize size in bytes of each per-thread buffer.
+     */
+    public NTSEntropySource(SecureRandom random, int bufferSize) {
+        if (random == null) {
+            throw new IllegalArgumentException("random cannot be null");
+        }
+        if (bufferSize < UNIQUE_IDENTIFIER_LENGTH) {
+            throw new IllegalArgumentException("bufferSize must be at least " + UNIQUE_IDENTIFIER_LENGTH + " bytes");
+        }
+        this.random = random;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Returns the entropy source shared by all requests, creating it on first use.
+     *
+     * @return the default entropy source.
+     */
+    public static NTSEntropySource getDefault() {
+        NTSEntropySource source = defaultSource;
+        if (source == null) {
+            synchronized (NTSEntropySource.class) {
+                source = defaultSource;
+                if (source == null) {
+                    source = new NTSEntropySource();
+                    defaultSource = source;
+                }
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Replaces the entropy source shared by all requests.
+     *
+     * @param source the new default source.
+     */
+    public static void setDefault(NTSEntropySource source) {
+        if (source == null) {
+            throw new IllegalArgumentException("source cannot be null");
+        }
+        defaultSource = source;
+    }
+
+    private Buffer newBuffer() {
+        return new Buffer(bufferSize);
+    }
+
+    /**
+     * Writes a fresh unique identifier into {@code dst}.
+     *
+     * @param dst    the destination array.
+     * @param offset where to write the {@link #UNIQUE_IDENTIFIER_LENGTH} bytes.
+     */
+    public void nextUniqueIdentifier(byte[] dst, int offset) {
+        nextBytes(dst, offset, UNIQUE_IDENTIFIER_LENGTH);
+    }
+
+    /**
+     * Writes a fresh nonce into {@code dst}.
+     *
+     * @param dst    the destination array.
+     * @param offset where to write the {@link #NONCE_LENGTH} bytes.
+     */
+    public void nextNonce(byte[] dst, int offset) {
+        nextBytes(dst, offset, NONCE_LENGTH);
+    }
+
+    /**
+     * Writes {@code length} random bytes into {@code dst} from the calling thread's buffer.
+     * Bytes handed out are never handed out again. Virtual threads draw directly from the shared generator.
+     *
+     * @param dst    the destination array.
+     * @param offset where to start writing.
+     * @param length number of bytes to write.
+     */
+    public void nextBytes(byte[] dst, int offset, int length) {
+        if (length > bufferSize || Thread.currentThread().isVirtual()) {
+            // Virtual threads are usually short-lived, prefilling a buffer for each of them would waste entropy
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            System.arraycopy(bytes, 0, dst, offset, length);
+            return;
+        }
+        Buffer buffer = buffers.get();
+        if (buffer.bytes.length - buffer.position < length) {
+            random.nextBytes(buffer.bytes);
+            buffer.position = 0;
+        }
+        System.arraycopy(buffer.bytes, buffer.position, dst, offset, length);
+        buffer.position += length;
+    }
+
+    /**
+     * Fills the calling thread's buffer ahead of time so the first request on this thread does not pay for it.
+     */
+    public void prefill() {
+        Buffer buffer = buffers.get();
+        if (buffer.position != 0) {
+            random.nextBytes(buffer.bytes);
+            buffer.position = 0;
+        }
+    }
+
+}
@@ -1,7 +1,5 @@
 package nts.NTSExtensionFields;
 
-import java.util.Arrays;
-
 public class NTSExtensionField {
 
     public FieldType fieldType;
@@ -19,25 +17,12 @@ public class NTSExtensionField {
 
     public static NTSExtensionField fromBytes(byte []buf, int idx)
     {
-
-        int num_bytes = buf.length;
-        int remaining = num_bytes - idx;
-        if(remaining < 4)
-        {
-            throw new RuntimeException();
-        }
-        byte []short_buf = Arrays.copyOfRange(buf, idx, idx+2);
-        FieldType fieldType = FieldType.fromBytes(short_buf);
-        short_buf = Arrays.copyOfRange(buf, idx+2, idx+4);
-        int fieldLength = ((short_buf[0] & 0xFF) << 8) + (short_buf[1]&0xFF);
-
-        if(remaining < fieldLength)
+        NTSExtensionFieldCursor cursor = new NTSExtensionFieldCursor(buf, idx, buf.length);
+        if(!cursor.next())
         {
             throw new RuntimeException();
         }
-        short_buf = Arrays.copyOfRange(buf, idx+4, idx+fieldLength);
-
-        return new NTSExtensionField(fieldType, short_buf);
+        return cursor.toExtensionField();
     }
 
     /**
@@ -52,17 +37,42 @@ public class NTSExtensionField {
         System.arraycopy(bodySegment, 0, body, offset, bodySegment.length);
     }
 
+    /**
+     * Writes the 4 byte header (field type and length) of an extension field.
+     * @param dst the destination buffer.
+     * @param offset position of the extension field in the buffer.
+     * @param fieldType the type of the extension field.
+     * @param fieldLength the total length of the extension field, header included.
+     * @return the offset of the extension field body.
+     */
+    public static int writeHeader(byte[] dst, int offset, FieldType fieldType, int fieldLength) {
+        int type = fieldType.getValue();
+        dst[offset] = (byte) (type >> 8);
+        dst[offset + 1] = (byte) (type & 0xFF);
+        dst[offset + 2] = (byte) (fieldLength >> 8);
+        dst[offset + 3] = (byte) (fieldLength & 0xFF);
+        return offset + 4;
+    }
+
+    /**
+     * Writes the NTSExtensionField into an existing buffer.
+     * @param dst the destination buffer, must have at least getFieldLength() bytes available after offset.
+     * @param offset position of the extension field in the buffer.
+     * @return the offset right after the extension field.
+     */
+    public int writeTo(byte[] dst, int offset) {
+        int bodyOffset = writeHeader(dst, offset, fieldType, fieldLength);
+        System.arraycopy(body, 0, dst, bodyOffset, body.length);
+        return offset + fieldLength;
+    }
+
     /**
      * Converts the NTSExtensionField to a byte array to be send over the network.
      * @return the byte array representation of the record.
      */
     public byte[] toByteArray(){
         byte[] extensionField = new byte[fieldLength];
-        System.arraycopy(fieldType.getBytesValue(), 0, extensionField, 0, 2);
-        extensionField[2] = (byte) (fieldLength >> 8);
-        extensionField[3] = (byte) (fieldLength & 0xFF);
-        System.arraycopy(body, 0, extensionField, 4, body.length);
-
+        writeTo(extensionField, 0);
         return extensionField;
     }
 
@@ -0,0 +1,175 @@
+package nts.NTSExtensionFields;
+
+import java.util.Arrays;
+
+/**
+ * Iterates over the extension fields of an NTP packet without copying them.
+ * <p>
+ * Each call to {@link #next()} moves the cursor to the following extension field and exposes its type, offset and
+ * length as views over the underlying buffer. Bytes are only copied when the caller asks for them, e.g. with
+ * {@link #copyBody()} for a cookie that has to be kept. The cursor can be reused with {@link #reset(byte[], int, int)}.
+ * </p>
+ * <pre>
+ * NTSExtensionFieldCursor cursor = new NTSExtensionFieldCursor(buf, 48, length);
+ * while (cursor.next()) {
+ *     if (cursor.is(FieldType.NTS_COOKIE)) {
+ *         cookies.add(cursor.copyBody());
+ *     }
+ * }
+ * </pre>
+ */
+public final class NTSExtensionFieldCursor {
+
+    private static final int HEADER_LENGTH = 4;
+
+    private byte[] buf;
+    private int limit;
+    private int nextOffset;
+    private int offset;
+    private int type;
+    private int length;
+
+    /**
+     * Creates a cursor with no buffer, {@link #reset(byte[], int, int)} must be called before use.
+     */
+    public NTSExtensionFieldCursor() {
+        this.buf = new byte[0];
+    }
+
+    /**
+     * Creates a cursor positioned before the first extension field of {@code buf}.
+     *
+     * @param buf    the buffer holding the extension fields.
+     * @param offset position of the first extension field.
+     * @param limit  end (exclusive) of the extension fields in the buffer.
+     */
+    public NTSExtensionFieldCursor(byte[] buf, int offset, int limit) {
+        reset(buf, offset, limit);
+    }
+
+    /**
+     * Repositions the cursor before the first extension field of {@code buf}.
+     *
+     * @param buf    the buffer holding the extension fields.
+     * @param offset position of the first extension field.
+     * @param limit  end (exclusive) of the extension fields in the buffer.
+     * @return this cursor.
+     */
+    public NTSExtensionFieldCursor reset(byte[] buf, int offset, int limit) {
+        if (offset < 0 || limit > buf.length || offset > limit) {
+            throw new IllegalArgumentException("Invalid extension field range [" + offset + ", " + limit + ")");
+        }
+        this.buf = buf;
+        this.limit = limit;
+        this.nextOffset = offset;
+        this.offset = -1;
+        this.type = -1;
+        this.length = 0;
+        return this;
+    }
+
+    /**
+     * Moves to the next extension field.
+     *
+     * @return {@code true} if the cursor is on a new extension field, {@code false} if there are no more fields.
+     * @throws IllegalArgumentException if the field is truncated or its length is invalid.
+     */
+    public boolean next() {
+        if (nextOffset >= limit) {
+            offset = -1;
+            return false;
+        }
+        int remaining = limit - nextOffset;
+        if (remaining < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Truncated extension field header at offset " + nextOffset);
+        }
+        int fieldType = (buf[nextOffset] & 0xFF) << 8 | (buf[nextOffset + 1] & 0xFF);
+        int fieldLength = (buf[nextOffset + 2] & 0xFF) << 8 | (buf[nextOffset + 3] & 0xFF);
+        if (fieldLength < HEADER_LENGTH || fieldLength > remaining) {
+            throw new IllegalArgumentException("Invalid extension field length " + fieldLength + " at offset " + nextOffset);
+        }
+        offset = nextOffset;
+        type = fieldType;
+        length = fieldLength;
+        nextOffset += fieldLength;
+        return true;
+    }
+
+    /**
+     * @return the raw field type of the current extension field, which may not be a known {@link FieldType}.
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @param fieldType the field type to compare with.
+     * @return {@code true} if the current extension field is of the given type.
+     */
+    public boolean is(FieldType fieldType) {
+        return offset >= 0 && type == fieldType.getValue();
+    }
+
+    /**
+     * @return the known type of the current extension field.
+     * @throws IllegalArgumentException if the type is not a known {@link FieldType}.
+     */
+    public FieldType getFieldType() {
+        return FieldType.fromValue(type);
+    }
+
+    /**
+     * @return the buffer the cursor iterates over.
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * @return the position of the current extension field in the buffer.
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the total length of the current extension field, header included.
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the position of the body of the current extension field in the buffer.
+     */
+    public int getBodyOffset() {
+        return offset + HEADER_LENGTH;
+    }
+
+    /**
+     * @return the length of the body of the current extension field.
+     */
+    public int getBodyLength() {
+        return length - HEADER_LENGTH;
+    }
+
+    /**
+     * Copies the body of the current extension field, for callers that need to keep it.
+     *
+     * @return a new array with the body of the current extension field.
+     */
+    public byte[] copyBody() {
+        return Arrays.copyOfRange(buf, getBodyOffset(), offset + length);
+    }
+
+    /**
+     * Materializes the current extension field.
+     *
+     * @return a new NTSExtensionField with a copy of the current body.
+     * @throws IllegalArgumentException if the type is not a known {@link FieldType}.
+     */
+    public NTSExtensionField toExtensionField() {
+        return new NTSExtensionField(getFieldType(), copyBody());
+    }
+
+}
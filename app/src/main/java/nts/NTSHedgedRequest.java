@@ -0,0 +1,132 @@
+package nts;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One hedged query: requests go to several servers, either all at once or staggered by the hedge delay, and the query
+ * completes as soon as the required number of verified responses has arrived. The requests still running then are
+ * cancelled. A failed request is replaced right away by a request to the next server, without waiting for the delay.
+ * The query fails, and cancels the requests still running, as soon as too many requests have failed for the required
+ * number of responses to be reached.
+ */
+final class NTSHedgedRequest {
+
+    private final NTSUDPClient client;
+    private final List<InetAddress> hosts;
+    private final int port;
+    private final int required;
+    private final long hedgeDelayMillis;
+
+    private final CompletableFuture<List<TimeInfo>> result = new CompletableFuture<>();
+    // guarded by this
+    private final List<CompletableFuture<TimeInfo>> inFlight = new ArrayList<>();
+    private final List<TimeInfo> responses = new ArrayList<>();
+    private final List<Throwable> failures = new ArrayList<>();
+    private int next;
+
+    NTSHedgedRequest(NTSUDPClient client, List<InetAddress> hosts, int port, int required, long hedgeDelayMillis) {
+        if (required < 1 || required > hosts.size()) {
+            throw new IllegalArgumentException("Required responses must be between 1 and " + hosts.size() + ": " + required);
+        }
+        this.client = client;
+        this.hosts = new ArrayList<>(hosts);
+        this.port = port;
+        this.required = required;
+        this.hedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    CompletableFuture<List<TimeInfo>> start() {
+        synchronized (this) {
+            // Without a delay every server is queried at once, otherwise only as many as needed to begin with
+            int initial = hedgeDelayMillis > 0 ? required : hosts.size();
+            for (int i = 0; i < initial; i++) {
+                launchNext();
+            }
+        }
+        scheduleHedge();
+        // Cancelling the query cancels the requests still running
+        result.whenComplete((responses, error) -> cancelInFlight());
+        return result;
+    }
+
+    private void scheduleHedge() {
+        if (hedgeDelayMillis <= 0) {
+            return;
+        }
+        Executor delayed = CompletableFuture.delayedExecutor(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+        delayed.execute(() -> {
+            boolean more;
+            synchronized (this) {
+                if (result.isDone()) {
+                    return;
+                }
+                launchNext();
+                more = next < hosts.size();
+            }
+            if (more) {
+                scheduleHedge();
+            }
+        });
+    }
+
+    // Called with the lock held
+    private void launchNext() {
+        if (result.isDone() || next >= hosts.size()) {
+            return;
+        }
+        CompletableFuture<TimeInfo> request = client.getTimeAsync(hosts.get(next++), port);
+        inFlight.add(request);
+        request.whenComplete((info, error) -> onComplete(request, info, error));
+    }
+
+    private void onComplete(CompletableFuture<TimeInfo> request, TimeInfo info, Throwable error) {
+        List<TimeInfo> completed = null;
+        IOException failed = null;
+        synchronized (this) {
+            inFlight.remove(request);
+            if (result.isDone()) {
+                return;
+            }
+            if (error == null) {
+                responses.add(info);
+                if (responses.size() >= required) {
+                    completed = Collections.unmodifiableList(new ArrayList<>(responses));
+                }
+            } else {
+                failures.add(error);
+                launchNext();
+                // fail as soon as the responses still possible cannot make up the required number
+                if (responses.size() + inFlight.size() + (hosts.size() - next) < required) {
+                    failed = new IOException("Only " + responses.size() + " of " + required + " required NTS responses from "
+                            + hosts.size() + " servers");
+                    for (Throwable failure : failures) {
+                        failed.addSuppressed(failure);
+                    }
+                }
+            }
+        }
+        if (completed != null) {
+            result.complete(completed);
+        } else if (failed != null) {
+            result.completeExceptionally(failed);
+        }
+    }
+
+    private void cancelInFlight() {
+        List<CompletableFuture<TimeInfo>> running;
+        synchronized (this) {
+            running = new ArrayList<>(inFlight);
+        }
+        for (CompletableFuture<TimeInfo> request : running) {
+            request.cancel(false);
+        }
+    }
+
+}
@@ -1,7 +1,11 @@
 package nts;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.security.Security;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.Provider;
 
 import javax.net.ssl.*;
 import org.conscrypt.Conscrypt;
@@ -18,22 +22,72 @@ public class NTSKEHandshake {
     public static byte[] AEAD_AES_SIV_CMAC_256 = {0x00, (byte) 0x0F};
     public static byte C2S_CONTEXT = 0x00;
     public static byte S2C_CONTEXT = 0x01;
+
+    /** Default time in milliseconds allowed for a whole NTS-KE exchange. */
+    public static int DEFAULT_TIMEOUT = 5000;
+
+    /** Number of TLS sessions kept for resumption, one per NTS-KE server. */
+    public static int SESSION_CACHE_SIZE = 1024;
+    /** Time in seconds a TLS session is kept for resumption, the server may accept it for less. */
+    public static int SESSION_TIMEOUT = 24 * 3600;
+
+    private static final ThreadLocal<NTSKERecordReader> RECORD_READERS = ThreadLocal.withInitial(NTSKERecordReader::new);
+
     private SSLSocketFactory factory;
+    private volatile NTSKEStatistics statistics = NTSKEStatistics.getDefault();
+
+    /** Conscrypt provider used directly, without installing it in the JVM-wide provider list. */
+    private static final class ConscryptHolder {
+        static final Provider PROVIDER = Conscrypt.newProvider();
+    }
+
+    /** The shared instance, created on first use. */
+    private static final class DefaultHolder {
+        static final NTSKEHandshake INSTANCE = new NTSKEHandshake();
+    }
+
+    /**
+     * Returns the handshake shared by all the peers that do not set their own. Its SSLContext, trust manager and TLS
+     * session cache are created once, on first use.
+     *
+     * @return the shared NTS-KE handshake.
+     */
+    public static NTSKEHandshake getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
 
     public NTSKEHandshake() {
         // Create a TLSv1.3 socket using Conscrypt to have access to exportKeyingMaterial
         try {
-            Security.insertProviderAt(Conscrypt.newProvider(), 1);
             X509TrustManager tm = Conscrypt.getDefaultX509TrustManager();
-            SSLContext context = SSLContext.getInstance("TLSv1.3", "Conscrypt");
+            SSLContext context = SSLContext.getInstance("TLSv1.3", ConscryptHolder.PROVIDER);
             context.init(null, new TrustManager[]{tm}, null);
-            factory = context.getSocketFactory();
+            init(context);
         } catch (Exception e) {
             e.printStackTrace();
         }
         
     }
 
+    /**
+     * Creates a handshake using a specific SSLContext, e.g. with other trust managers. The context must come from
+     * Conscrypt, which provides the keying material exporter, and it has its own TLS session cache.
+     *
+     * @param context an initialized Conscrypt TLSv1.3 context.
+     */
+    public NTSKEHandshake(SSLContext context) {
+        init(context);
+    }
+
+    private void init(SSLContext context) {
+        // Sessions are cached by server host and port, re-handshakes with a server resume the previous session
+        // (TLS 1.3 PSK) instead of a full handshake with certificate verification
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+        factory = context.getSocketFactory();
+    }
+
     private static void printSession(SSLSession session) {
         try {
             System.out.println("Protocol: " + session.getProtocol());
@@ -46,6 +100,36 @@ public class NTSKEHandshake {
         }
     }
 
+    /**
+     * @return the statistics the handshakes are recorded in.
+     */
+    public NTSKEStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Sets the statistics the handshakes are recorded in, {@link NTSKEStatistics#getDefault()} by default.
+     *
+     * @param statistics the statistics.
+     */
+    public void setStatistics(NTSKEStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Tells whether a TLS handshake resumed a previous session. A resumed session keeps the creation time of the session
+     * it resumes, while a full handshake creates its session during the handshake; creation times have a one-second
+     * resolution, so a session resumed within the second it was created counts as a full handshake. This does not
+     * rely on session IDs, which TLS 1.3 tickets renew on each resumption.
+     *
+     * @param session              the session negotiated by the handshake.
+     * @param handshakeStartMillis wall-clock time at which the handshake started.
+     * @return true if the session was created before the handshake.
+     */
+    static boolean isResumed(SSLSession session, long handshakeStartMillis) {
+        return session.getCreationTime() < handshakeStartMillis - handshakeStartMillis % 1000;
+    }
+
     private static byte[] getKeyExpansionContext(byte CS2orS2C) {
         byte[] key_extraction_context = new byte[5];
         System.arraycopy(PROTO_ID_NTPV4, 0, key_extraction_context, 0, 2);
@@ -55,16 +139,38 @@ public class NTSKEHandshake {
     }
 
     public NTSConfig doHandshake(String host, int port) {
+        return doHandshake(host, port, DEFAULT_TIMEOUT);
+    }
 
+    /**
+     * Runs the NTS-KE handshake with a server.
+     *
+     * @param host          the NTS-KE server.
+     * @param port          the NTS-KE port.
+     * @param timeoutMillis time allowed for the whole exchange: DNS resolution, TCP connection, TLS handshake and reading
+     *                      the response. 0 for no limit.
+     * @return the new association, or null if the handshake failed or timed out.
+     */
+    public NTSConfig doHandshake(String host, int port, int timeoutMillis) {
+
+        final long deadline = NTSDeadline.after(timeoutMillis);
+        final Socket rawSocket = new Socket();
         try {
-            SSLSocket socket = (SSLSocket) factory.createSocket(host, port);
+            // DNS resolution cannot be interrupted, the time it takes counts against the deadline
+            InetSocketAddress address = new InetSocketAddress(host, port);
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(host);
+            }
+            rawSocket.connect(address, NTSDeadline.remainingMillis(deadline, "NTS-KE connection to " + host));
+            // Layered with the host and port so that the session cache can look up the previous session of this server
+            SSLSocket socket = (SSLSocket) factory.createSocket(rawSocket, host, port, true);
 
             // Must be TLSv1.3 and ALPN Offer "ntske/1"
             SSLParameters params = socket.getSSLParameters();
             params.setProtocols(new String[] { "TLSv1.3" });
             //params.setApplicationProtocols(new String[] { "ntske/1" });
             socket.setSSLParameters(params);
-            socket.setSoTimeout(300);
+            socket.setSoTimeout(NTSDeadline.remainingMillis(deadline, "NTS-KE handshake with " + host));
             
             // Weird issue on android:
             // Conscrypt does not seems to use the application protocol from the ssl Params
@@ -72,7 +178,12 @@ public class NTSKEHandshake {
             // Need to be sneaky
             Conscrypt.setApplicationProtocols(socket, new String[] {"ntske/1"});
 
+            // Only the TLS handshake is timed, DNS resolution and the TCP connection do not depend on resumption
+            long startMillis = System.currentTimeMillis();
+            long start = System.nanoTime();
             socket.startHandshake();
+            long elapsed = System.nanoTime() - start;
+            statistics.recordHandshake(isResumed(socket.getSession(), startMillis), elapsed);
             //printSession(socket.getSession());
             //System.out.println("Conscrypt v" + Conscrypt.version().major() + "." + Conscrypt.version().minor() + "." + Conscrypt.version().patch());
             //System.out.println("Cipher Suites: " + String.join(", ", socket.getEnabledCipherSuites()));
@@ -92,39 +203,71 @@ public class NTSKEHandshake {
             socket.getOutputStream().write(NtsKeClientMessage.toBytes());
             socket.getOutputStream().flush();
 
-            // Read Response
-            byte[] response = new byte[1024];
-            int bytesRead = socket.getInputStream().read(response);
-
-            if(bytesRead < 0)
-            {
-                throw new IOException("Unable to read NTS KE Response from server");
-            }
-
-            // Create NTSKE Response Message
-            NTSKEMessage NTSKEResponseMessage = NTSKEMessage.parseNTSKERawMessage(response, bytesRead);
-            //System.out.println("\nNTSKE Server Message: " + bytesRead + " bytes");
-            //System.out.println(NTSKEResponseMessage);
-            //System.out.println(NTSKEResponseMessage.toByteString());
-
             // Derive client and server keys from TLS handshake
             byte[] context_c2s = getKeyExpansionContext(C2S_CONTEXT);
             byte[] context_s2c = getKeyExpansionContext(S2C_CONTEXT);
 
             byte[] c2s_key = Conscrypt.exportKeyingMaterial(socket, LABEL, context_c2s, 32);
             byte[] s2c_key = Conscrypt.exportKeyingMaterial(socket, LABEL, context_s2c, 32);
-            
+
+            NTSConfig ntsConfig = new NTSConfig();
+            ntsConfig.host = host;
+            ntsConfig.port = port;
+
+            // Read Response, record by record until End of Message: a response split across several TLS records is
+            // read completely and each cookie goes into the cookie jar as soon as it is decoded
+            RECORD_READERS.get().readMessage(new DeadlineInputStream(socket, deadline, "NTS-KE response from " + host),
+                    record -> NTSKEMessage.applyRecord(ntsConfig, record));
+
             socket.close();
 
-            NTSConfig ntsConfig = NTSKEResponseMessage.parseResponse(host, port);
+            if (ntsConfig.cookies.isEmpty()) {
+                throw new IllegalStateException("No cookies received from NTS KE Server.");
+            }
             ntsConfig.C2SKey = c2s_key;
             ntsConfig.S2CKey = s2c_key;
+            ntsConfig.setCryptoContext(new NTSCryptoContext(c2s_key, s2c_key));
 
             return ntsConfig;
 
         } catch (Exception e) {
+            statistics.recordFailure();
             e.printStackTrace();
             return null;
+        } finally {
+            try {
+                rawSocket.close();
+            } catch (IOException e) {
+                // nothing else to release
+            }
+        }
+    }
+
+    /**
+     * Gives each read of the response the time left until the deadline.
+     */
+    private static final class DeadlineInputStream extends FilterInputStream {
+        private final Socket socket;
+        private final long deadline;
+        private final String what;
+
+        DeadlineInputStream(Socket socket, long deadline, String what) throws IOException {
+            super(socket.getInputStream());
+            this.socket = socket;
+            this.deadline = deadline;
+            this.what = what;
+        }
+
+        @Override
+        public int read() throws IOException {
+            socket.setSoTimeout(NTSDeadline.remainingMillis(deadline, what));
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            socket.setSoTimeout(NTSDeadline.remainingMillis(deadline, what));
+            return super.read(b, off, len);
         }
     }
 
@@ -133,7 +276,7 @@ public class NTSKEHandshake {
         String host = "ntppool1.time.nl";
         int port = 4460;
 
-        NTSKEHandshake tlsHandshake = new NTSKEHandshake();
+        NTSKEHandshake tlsHandshake = NTSKEHandshake.getDefault();
         NTSConfig ntsConfig = tlsHandshake.doHandshake(host, port);
         System.out.println("Result: " + ntsConfig);
 
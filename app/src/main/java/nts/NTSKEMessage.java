@@ -76,31 +76,7 @@ public class NTSKEMessage {
         config.port = KE_port;
 
         for (NTSKERecord record : NTSKERecords) {
-            switch (record.recordType) {
-                case Error:
-                    Constants.ErrorCodes errorCode = Constants.ErrorCodes.fromBytes(record.recordBody);
-                    throw new IllegalStateException("The NTS KE Server communicated an error: " + errorCode);
-                case Warning:
-                    int warningCode = record.recordBody[0] << 8 | (record.recordBody[1] & 0xFF);
-                    throw new IllegalStateException("The NTS KE Server communicated an error: " + warningCode);
-                case NTSNextProtocolNegotiation:
-                    config.NTSProtocol = ((NTSNextProtocolNegotiation) record).NTSProtocol;
-                    break;
-                case AEADAlgorithmNegotiation: 
-                    config.AEADAlgorithm = ((AEADAlgorithmNegotiation) record).algorithms[0];
-                    break;
-                case NewCookieForNTPv4:
-                    config.cookies.add(record.recordBody);
-                    break;
-                case NTPv4ServerNegotiation:
-                    config.host = ((NTPv4ServerNegotiation) record).NTPv4Server;
-                    break;
-                case NTPv4PortNegotiation:
-                    config.port = ((NTPv4PortNegotiation) record).NTPv4Port;
-                    break;
-                default:
-                    break;
-            }
+            applyRecord(config, record);
         }
 
         if (config.cookies.size() < 1) {
@@ -109,4 +85,44 @@ public class NTSKEMessage {
 
         return config;
     }
+
+    /**
+     * Applies one record of the response from the NTS KE Server to the NTSConfig being built, e.g. as soon as it is
+     * read from the connection. Cookies go straight into the cookie jar of the config, which grows to hold all the
+     * cookies offered by the server.
+     * @param config the config being built.
+     * @param record the record received.
+     * @throws IllegalStateException if the record is an Error or Warning record.
+     */
+    public static void applyRecord(NTSConfig config, NTSKERecord record) {
+        switch (record.recordType) {
+            case Error:
+                Constants.ErrorCodes errorCode = Constants.ErrorCodes.fromBytes(record.recordBody);
+                throw new IllegalStateException("The NTS KE Server communicated an error: " + errorCode);
+            case Warning:
+                int warningCode = record.recordBody[0] << 8 | (record.recordBody[1] & 0xFF);
+                throw new IllegalStateException("The NTS KE Server communicated an error: " + warningCode);
+            case NTSNextProtocolNegotiation:
+                config.NTSProtocol = ((NTSNextProtocolNegotiation) record).NTSProtocol;
+                break;
+            case AEADAlgorithmNegotiation: 
+                config.AEADAlgorithm = ((AEADAlgorithmNegotiation) record).algorithms[0];
+                break;
+            case NewCookieForNTPv4:
+                // keep every cookie offered, the jar grows beyond its default capacity if needed
+                if (config.cookies.size() >= config.cookies.getCapacity()) {
+                    config.cookies.setCapacity(config.cookies.getCapacity() + 1);
+                }
+                config.cookies.add(record.recordBody);
+                break;
+            case NTPv4ServerNegotiation:
+                config.host = ((NTPv4ServerNegotiation) record).NTPv4Server;
+                break;
+            case NTPv4PortNegotiation:
+                config.port = ((NTPv4PortNegotiation) record).NTPv4Port;
+                break;
+            default:
+                break;
+        }
+    }
 }
@@ -0,0 +1,90 @@
+package nts;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import nts.NTSKERecords.NTSKERecord;
+import nts.NTSKERecords.NTSKERecordFactory;
+import nts.NTSKERecords.NTSKERecordType;
+
+/**
+ * Incremental reader of an NTS-KE message (RFC 8915 section 4).
+ * <p>
+ * The response of an NTS-KE server can be larger than a single read, e.g. with many cookies, and can be split across
+ * TLS records. The reader keeps reading the stream into a growable buffer, decodes each record as soon as its bytes
+ * are available and passes it to the caller, until the End of Message record. The buffer is kept between messages,
+ * so a reader can be reused by one thread at a time.
+ * </p>
+ */
+public final class NTSKERecordReader {
+
+    private static final int HEADER_LENGTH = 4;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Upper bound of the size of a message, against servers that never send End of Message. */
+    public static final int MAX_MESSAGE_LENGTH = 256 * 1024;
+
+    private byte[] buf = new byte[INITIAL_CAPACITY];
+    private int start;
+    private int end;
+
+    /**
+     * Reads records until the End of Message record, which is passed to the consumer as well.
+     *
+     * @param in       the stream of the NTS-KE connection.
+     * @param consumer receives each record as soon as it is decoded.
+     * @throws EOFException if the stream ends before the End of Message record.
+     * @throws IOException if reading fails or the message is longer than {@link #MAX_MESSAGE_LENGTH}.
+     * @throws IllegalArgumentException if a record is malformed or of an unknown type.
+     */
+    public void readMessage(InputStream in, Consumer<NTSKERecord> consumer) throws IOException {
+        start = 0;
+        end = 0;
+        int total = 0;
+        while (true) {
+            // Decode all the records already buffered
+            while (end - start >= HEADER_LENGTH) {
+                int recordLength = HEADER_LENGTH + ((buf[start + 2] & 0xFF) << 8 | (buf[start + 3] & 0xFF));
+                if (end - start < recordLength) {
+                    break;
+                }
+                NTSKERecord record = NTSKERecordFactory.parseRecord(Arrays.copyOfRange(buf, start, start + recordLength));
+                start += recordLength;
+                consumer.accept(record);
+                if (record.recordType == NTSKERecordType.EndOfMessage) {
+                    return;
+                }
+            }
+
+            makeRoom();
+            int n = in.read(buf, end, buf.length - end);
+            if (n < 0) {
+                throw new EOFException("NTS-KE message ended before End of Message after " + total + " bytes");
+            }
+            end += n;
+            total += n;
+            if (total > MAX_MESSAGE_LENGTH) {
+                throw new IOException("NTS-KE message longer than " + MAX_MESSAGE_LENGTH + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Moves the partial record at the start of the buffer and grows the buffer if the record does not fit.
+     */
+    private void makeRoom() {
+        if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        int needed = end < HEADER_LENGTH ? HEADER_LENGTH : HEADER_LENGTH + ((buf[2] & 0xFF) << 8 | (buf[3] & 0xFF));
+        if (needed > buf.length || end == buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(needed, buf.length * 2));
+        }
+    }
+
+}
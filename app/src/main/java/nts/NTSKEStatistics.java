@@ -0,0 +1,129 @@
+package nts;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the NTS-KE handshakes: how many resumed a previous TLS session and how long the TLS handshakes took,
+ * for full and resumed handshakes separately. The latency covers the TLS handshake only: not the DNS resolution and TCP
+ * connection before it, nor the NTS-KE records exchanged afterwards.
+ * <p>
+ * All methods are thread-safe. {@link #getDefault()} is the instance shared by the handshakes unless another one is set
+ * with {@link NTSKEHandshake#setStatistics(NTSKEStatistics)}.
+ * </p>
+ */
+public final class NTSKEStatistics {
+
+    private static final NTSKEStatistics DEFAULT = new NTSKEStatistics();
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final LongAdder fullNanos = new LongAdder();
+    private final LongAdder resumedNanos = new LongAdder();
+
+    /**
+     * @return the statistics shared by default by all the NTS-KE handshakes.
+     */
+    public static NTSKEStatistics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Records a successful TLS handshake.
+     *
+     * @param resumed     true if a previous session was resumed.
+     * @param elapsedNanos time taken by the TLS handshake.
+     */
+    public void recordHandshake(boolean resumed, long elapsedNanos) {
+        if (resumed) {
+            resumedHandshakes.increment();
+            resumedNanos.add(elapsedNanos);
+        } else {
+            fullHandshakes.increment();
+            fullNanos.add(elapsedNanos);
+        }
+    }
+
+    /**
+     * Records an NTS-KE handshake that failed.
+     */
+    public void recordFailure() {
+        failedHandshakes.increment();
+    }
+
+    /**
+     * @return the number of successful TLS handshakes.
+     */
+    public long getHandshakes() {
+        return fullHandshakes.sum() + resumedHandshakes.sum();
+    }
+
+    /**
+     * @return the number of TLS handshakes that resumed a previous session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * @return the number of NTS-KE handshakes that failed.
+     */
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    /**
+     * @return the fraction of TLS handshakes that resumed a previous session, between 0 and 1.
+     */
+    public double getResumptionRate() {
+        long handshakes = getHandshakes();
+        return handshakes == 0 ? 0 : (double) resumedHandshakes.sum() / handshakes;
+    }
+
+    /**
+     * @return the mean latency of full TLS handshakes in milliseconds, or 0 if there were none.
+     */
+    public double getMeanFullHandshakeMillis() {
+        return meanMillis(fullNanos.sum(), fullHandshakes.sum());
+    }
+
+    /**
+     * @return the mean latency of resumed TLS handshakes in milliseconds, or 0 if there were none.
+     */
+    public double getMeanResumedHandshakeMillis() {
+        return meanMillis(resumedNanos.sum(), resumedHandshakes.sum());
+    }
+
+    /**
+     * @return the relative latency saved by resumption, {@code 1 - resumed / full}, or 0 if either kind is missing.
+     */
+    public double getLatencyReduction() {
+        double full = getMeanFullHandshakeMillis();
+        double resumed = getMeanResumedHandshakeMillis();
+        return full == 0 || resumed == 0 ? 0 : 1 - resumed / full;
+    }
+
+    /**
+     * Resets all the counters.
+     */
+    public void reset() {
+        fullHandshakes.reset();
+        resumedHandshakes.reset();
+        failedHandshakes.reset();
+        fullNanos.reset();
+        resumedNanos.reset();
+    }
+
+    private static double meanMillis(long nanos, long count) {
+        return count == 0 ? 0 : (double) nanos / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NTSKEStatistics { handshakes: %d, resumed: %d (%.1f%%), failed: %d, full: %.2f ms, resumed: %.2f ms, reduction: %.1f%% }",
+                getHandshakes(), getResumedHandshakes(), 100 * getResumptionRate(), getFailedHandshakes(),
+                getMeanFullHandshakeMillis(), getMeanResumedHandshakeMillis(), 100 * getLatencyReduction());
+    }
+
+}
@@ -1,24 +1,371 @@
 package nts;
 
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An NTS server and its current association.
+ * <p>
+ * The NTS-KE handshake runs in the background, before it is needed: when the number of cookies falls to the low
+ * watermark or when the keys reach their maximum age, a new association is negotiated while requests keep using the
+ * current one, and it is swapped in atomically once ready. A request only waits for a handshake when there is no
+ * usable association at all (first use, no cookies left or after a NAK), and then all the waiting requests share
+ * the same handshake. After a failed handshake no new one is started for a backoff period, which doubles with each
+ * consecutive failure, so that a server that is down does not get a handshake per request.
+ * </p>
+ */
 public class NTSPeer {
     public String KEHost;
     public int KEPort = 4460; // Default port for KE
-    private NTSKEHandshake tlsHandshake = new NTSKEHandshake();
-    public NTSConfig ntsConfig;
-    public boolean nakReceived = false;
+    private volatile NTSKEHandshake tlsHandshake;
+    public volatile NTSConfig ntsConfig;
+    public volatile boolean nakReceived = false;
+
+    /** Default number of cookies at or below which a new association is negotiated in the background. */
+    public static final int DEFAULT_LOW_WATERMARK = 2;
+
+    /** Default age after which the keys are renewed in the background. */
+    public static final long DEFAULT_MAX_KEY_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    /** Default time without handshakes after a first failed handshake. */
+    public static final long DEFAULT_MIN_HANDSHAKE_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    /** Default limit of the time without handshakes after consecutive failed handshakes. */
+    public static final long DEFAULT_MAX_HANDSHAKE_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /** Time in milliseconds allowed for an NTS-KE exchange with this peer, 0 for no limit. */
+    public volatile int KETimeout = NTSKEHandshake.DEFAULT_TIMEOUT;
+    /** Time in milliseconds allowed for a time request to this peer, 0 to use the default timeout of the client. */
+    public volatile int timeout = 0;
+
+    public volatile int lowWatermark = DEFAULT_LOW_WATERMARK;
+    public volatile long maxKeyAgeMillis = DEFAULT_MAX_KEY_AGE_MILLIS;
+    public volatile long minHandshakeBackoffMillis = DEFAULT_MIN_HANDSHAKE_BACKOFF_MILLIS;
+    public volatile long maxHandshakeBackoffMillis = DEFAULT_MAX_HANDSHAKE_BACKOFF_MILLIS;
+
+    private static volatile Executor defaultHandshakeExecutor;
+
+    private volatile Executor handshakeExecutor;
+    private volatile NTSAssociationStore associationStore;
+    private CompletableFuture<NTSConfig> handshake; // guarded by this
+    private int generation; // guarded by this, incremented by release()
+    // guarded by this, 0 until a handshake fails and again after one succeeds
+    private long backoffMillis;
+    private long retryAtNanos;
+
+    /**
+     * An association together with a cookie already taken from it, for one request.
+     */
+    public static final class ReadyConfig {
+        /** The association. */
+        public final NTSConfig config;
+        /** The cookie for the request, no longer in the cookie jar of the association. */
+        public final byte[] cookie;
+        /**
+         * The number of cookies to request, reserved in the cookie jar when the cookie was taken; the reservation ends
+         * with {@link NTSConfig#releaseRequestedCookies(int)} once the request is over.
+         */
+        public final int requestedCookies;
+
+        ReadyConfig(NTSConfig config, byte[] cookie, int requestedCookies) {
+            this.config = config;
+            this.cookie = cookie;
+            this.requestedCookies = requestedCookies;
+        }
+    }
 
     public NTSPeer(String KEHost) {
         this.KEHost = KEHost;
         doHandshake();
     }
 
-    public void doHandshake() {
-        nakReceived = false;
-        ntsConfig = tlsHandshake.doHandshake(KEHost, KEPort);
+    /**
+     * Creates a peer without running the NTS-KE handshake, either for an association established elsewhere or, with a
+     * null configuration, to handshake lazily on first use.
+     *
+     * @param KEHost    the NTS-KE server.
+     * @param ntsConfig the association, or null.
+     */
+    public NTSPeer(String KEHost, NTSConfig ntsConfig) {
+        this.KEHost = KEHost;
+        this.ntsConfig = ntsConfig;
     }
 
     public NTSPeer() {
         // Default constructor
     }
 
+    /**
+     * Runs the NTS-KE handshake and waits for it, or waits for the one already running. The previous association is
+     * kept if the handshake fails.
+     */
+    public void doHandshake() {
+        refreshAsync().join();
+    }
+
+    /**
+     * Starts the NTS-KE handshake in the background, unless one is already running or the last one failed less than
+     * the backoff period ago.
+     *
+     * @return a future completed with the new association once it has replaced the current one, or with null if the
+     *         handshake failed or is not retried yet.
+     */
+    public synchronized CompletableFuture<NTSConfig> refreshAsync() {
+        if (handshake != null) {
+            return handshake;
+        }
+        if (backoffMillis > 0 && System.nanoTime() - retryAtNanos < 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<NTSConfig> future = new CompletableFuture<>();
+        final int started = generation;
+        handshake = future;
+        try {
+            getHandshakeExecutor().execute(() -> runHandshake(future, started));
+        } catch (RejectedExecutionException e) {
+            handshake = null;
+            future.complete(null);
+        }
+        return future;
+    }
+
+    private void runHandshake(final CompletableFuture<NTSConfig> future, final int started) {
+        NTSConfig newConfig = null;
+        try {
+            newConfig = getTlsHandshake().doHandshake(KEHost, KEPort, KETimeout);
+        } finally {
+            boolean installed = false;
+            synchronized (this) {
+                handshake = null;
+                // a peer released meanwhile must not get an association back
+                if (newConfig != null && started == generation) {
+                    ntsConfig = newConfig;
+                    nakReceived = false;
+                    backoffMillis = 0;
+                    installed = true;
+                } else if (newConfig == null) {
+                    backoffMillis = backoffMillis == 0 ? minHandshakeBackoffMillis
+                            : Math.min(maxHandshakeBackoffMillis, 2 * backoffMillis);
+                    retryAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+                }
+            }
+            if (installed) {
+                saveAssociation(newConfig);
+            } else if (newConfig != null) {
+                newConfig.destroy();
+                newConfig = null;
+            }
+            future.complete(newConfig);
+        }
+    }
+
+    private NTSKEHandshake getTlsHandshake() {
+        NTSKEHandshake handshake = tlsHandshake;
+        return handshake != null ? handshake : NTSKEHandshake.getDefault();
+    }
+
+    /**
+     * Sets the NTS-KE handshake used by this peer.
+     *
+     * @param tlsHandshake the handshake, or null to use {@link NTSKEHandshake#getDefault() the shared one}.
+     */
+    public void setTlsHandshake(final NTSKEHandshake tlsHandshake) {
+        this.tlsHandshake = tlsHandshake;
+    }
+
+    /**
+     * Returns the association to use for the next request with a cookie taken from it, so that concurrent requests
+     * never compete for the last cookie. If the association is running low on cookies or its keys are too old, a new
+     * one is negotiated in the background and this call does not wait for it. This call only waits for the handshake
+     * if there is no usable association: none yet, no fresh cookies left, or the server sent a NAK. It waits for one
+     * handshake at most, and fails if other requests took all the cookies of the new association first.
+     *
+     * @return the current association and the cookie for the request.
+     * @throws IOException if there is no usable association and the handshake failed, or failed less than the backoff
+     *                     period ago, or left no cookie for this request.
+     */
+    public ReadyConfig getReadyConfig() throws IOException {
+        return getReadyConfig(NTSDeadline.NONE);
+    }
+
+    /**
+     * Same as {@link #getReadyConfig()}, but waits for the handshake at most until the deadline.
+     *
+     * @param deadline the {@link System#nanoTime()} until which to wait, {@link Long#MAX_VALUE} for no limit.
+     * @return the current association and the cookie for the request.
+     * @throws java.net.SocketTimeoutException if the deadline passes while waiting for the handshake.
+     * @throws IOException if there is no usable association and none could be negotiated for this request.
+     */
+    public ReadyConfig getReadyConfig(final long deadline) throws IOException {
+        ReadyConfig ready = tryGetReadyConfig();
+        if (ready != null) {
+            return ready;
+        }
+        NTSConfig newConfig = null;
+        try {
+            newConfig = NTSDeadline.await(refreshAsync(), deadline, "NTS-KE handshake with " + KEHost);
+        } catch (ExecutionException e) {
+            // reported below
+        }
+        if (newConfig == null) {
+            throw new IOException("No usable NTS association with " + KEHost + ", the NTS-KE handshake failed");
+        }
+        // Other requests may have taken the cookies of the new association first, this one does not wait for another
+        ready = tryGetReadyConfig();
+        if (ready == null) {
+            throw new IOException("No usable NTS association with " + KEHost + ", the cookies of the new association were taken by other requests");
+        }
+        return ready;
+    }
+
+    /**
+     * Same as {@link #getReadyConfig()}, but never waits for a handshake, for callers that must not block: they can
+     * wait for {@link #refreshAsync()} instead when there is no usable association.
+     *
+     * @return the current association and the cookie for the request, or null if there is no usable association.
+     */
+    public ReadyConfig tryGetReadyConfig() {
+        final NTSConfig config = ntsConfig;
+        if (config == null || nakReceived) {
+            return null;
+        }
+        final byte[] cookie;
+        int requested = 0;
+        // Taken and reserved in one step on the jar, so that a request taking a cookie meanwhile is counted
+        synchronized (config.cookies) {
+            cookie = config.cookies.take();
+            if (cookie != null) {
+                requested = config.cookies.reserve();
+            }
+        }
+        if (cookie == null) {
+            return null;
+        }
+        if (config.cookies.size() <= lowWatermark || config.getAgeMillis() > maxKeyAgeMillis) {
+            refreshAsync();
+        }
+        return new ReadyConfig(config, cookie, requested);
+    }
+
+    /**
+     * @return true if requests can be sent right away, without waiting for an NTS-KE handshake.
+     */
+    public boolean isReady() {
+        return isUsable(ntsConfig);
+    }
+
+    private boolean isUsable(final NTSConfig config) {
+        return config != null && !nakReceived && !config.cookies.isEmpty();
+    }
+
+    /**
+     * Records an NTS NAK from the server (RFC 8915 section 5.7) and starts a new handshake in the background. Requests
+     * wait for it instead of sending cookies the server no longer accepts; the old cookies are kept in memory, but the
+     * association is removed from the association store so that a restarted process does not load it.
+     */
+    public void reportNak() {
+        nakReceived = true;
+        removeAssociation();
+        refreshAsync();
+    }
+
+    /**
+     * Drops the association and overwrites its keys and cookies, e.g. when the peer is evicted. It is removed from the
+     * association store as well. Requests already in flight are not affected; if the peer is used again it runs a new
+     * handshake.
+     */
+    public void release() {
+        NTSConfig config;
+        synchronized (this) {
+            generation++;
+            config = ntsConfig;
+            ntsConfig = null;
+        }
+        if (config != null) {
+            config.destroy();
+        }
+        removeAssociation();
+    }
+
+    private void removeAssociation() {
+        NTSAssociationStore store = associationStore;
+        if (store != null) {
+            try {
+                store.remove(KEHost);
+            } catch (IOException e) {
+                // the stored association is taken, or replaced, on its next use
+            }
+        }
+    }
+
+    /**
+     * Sets the store where the associations of this peer are saved once negotiated, and removed when released.
+     *
+     * @param associationStore the store, or null to keep the associations in memory only.
+     */
+    public void setAssociationStore(final NTSAssociationStore associationStore) {
+        this.associationStore = associationStore;
+    }
+
+    /**
+     * Saves the current association to the store of this peer, if any, with the cookies it has left.
+     *
+     * @throws IOException if the association cannot be written.
+     */
+    public void saveAssociation() throws IOException {
+        final NTSAssociationStore store = associationStore;
+        final NTSConfig config = ntsConfig;
+        if (store != null && config != null && !nakReceived) {
+            store.save(KEHost, config);
+        }
+    }
+
+    private void saveAssociation(final NTSConfig config) {
+        final NTSAssociationStore store = associationStore;
+        if (store == null) {
+            return;
+        }
+        try {
+            store.save(KEHost, config);
+        } catch (IOException e) {
+            // the association works without being stored, the next process runs its own handshake
+        }
+    }
+
+    /**
+     * Sets the executor running the background NTS-KE handshakes of this peer.
+     *
+     * @param executor the executor, or null to use a shared pool of daemon threads.
+     */
+    public void setHandshakeExecutor(final Executor executor) {
+        this.handshakeExecutor = executor;
+    }
+
+    private Executor getHandshakeExecutor() {
+        Executor executor = handshakeExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        executor = defaultHandshakeExecutor;
+        if (executor == null) {
+            synchronized (NTSPeer.class) {
+                executor = defaultHandshakeExecutor;
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "nts-ke-handshake");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    defaultHandshakeExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
 }
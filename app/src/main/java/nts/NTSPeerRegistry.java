@@ -0,0 +1,279 @@
+package nts;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Concurrent registry of the NTS peers of a client, indexed by server address.
+ * <p>
+ * Lookups are a hash lookup plus a timestamp update, without locking. The registry is bounded: when a new peer takes
+ * it over its maximum size, the least recently used peers are evicted, and peers idle for longer than the maximum idle
+ * time are evicted as well. Evicted peers are {@link NTSPeer#release() released}, i.e. their keys and cookies are
+ * overwritten, so memory stays bounded however many servers are queried over time.
+ * </p>
+ */
+public final class NTSPeerRegistry {
+
+    /** Default maximum number of peers. */
+    public static final int DEFAULT_MAX_SIZE = 4096;
+
+    private static final class Entry {
+        final NTSPeer peer;
+        volatile long lastUsedNanos;
+
+        Entry(NTSPeer peer) {
+            this.peer = peer;
+            this.lastUsedNanos = System.nanoTime();
+        }
+    }
+
+    private final ConcurrentHashMap<InetAddress, Entry> peers = new ConcurrentHashMap<>();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+    private volatile int maxSize;
+    private volatile long maxIdleNanos = Long.MAX_VALUE;
+    private volatile NTSAssociationStore associationStore;
+
+    /**
+     * Creates a registry holding at most {@link #DEFAULT_MAX_SIZE} peers.
+     */
+    public NTSPeerRegistry() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize maximum number of peers.
+     */
+    public NTSPeerRegistry(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    /**
+     * @return the maximum number of peers.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum number of peers, evicting the least recently used ones if there are more.
+     *
+     * @param maxSize maximum number of peers.
+     */
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Peer registry size must be at least 1: " + maxSize);
+        }
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Sets the time after which an unused peer is evicted. Idle peers are evicted by {@link #evictIdle()} and whenever
+     * the registry is full.
+     *
+     * @param maxIdleMillis maximum idle time in milliseconds, or 0 to keep idle peers as long as there is room.
+     */
+    public void setMaxIdleMillis(long maxIdleMillis) {
+        this.maxIdleNanos = maxIdleMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(maxIdleMillis) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Sets the store of the associations of the peers created afterwards: a new peer takes its association from the
+     * store, if there is one, and saves the ones it negotiates.
+     *
+     * @param associationStore the store, or null to keep the associations in memory only.
+     */
+    public void setAssociationStore(NTSAssociationStore associationStore) {
+        this.associationStore = associationStore;
+    }
+
+    /**
+     * @return the number of peers.
+     */
+    public int size() {
+        return peers.size();
+    }
+
+    /**
+     * Looks up the peer of a server and marks it as used.
+     *
+     * @param host the address of the server.
+     * @return the peer, or null if there is none.
+     */
+    public NTSPeer get(InetAddress host) {
+        Entry entry = peers.get(host);
+        if (entry == null) {
+            return null;
+        }
+        entry.lastUsedNanos = System.nanoTime();
+        return entry.peer;
+    }
+
+    /**
+     * Looks up the peer of a server, creating it if needed, and marks it as used. A new peer has no association yet,
+     * unless there is one in the association store, and runs the NTS-KE handshake on first use.
+     *
+     * @param host the address of the server.
+     * @return the peer.
+     */
+    public NTSPeer getOrCreate(InetAddress host) {
+        NTSPeer peer = get(host);
+        if (peer != null) {
+            return peer;
+        }
+        // Created outside of the map: taking the association from the store reads and writes the disk, which must not
+        // block the lookups of other servers
+        NTSPeer created = createPeer(host.getHostAddress());
+        Entry existing = peers.putIfAbsent(host, new Entry(created));
+        if (existing != null) {
+            giveBack(created);
+            existing.lastUsedNanos = System.nanoTime();
+            return existing.peer;
+        }
+        evict();
+        return created;
+    }
+
+    /**
+     * Returns the association of a peer created by a thread that lost the race to register it to the store.
+     */
+    private static void giveBack(NTSPeer peer) {
+        NTSConfig config = peer.ntsConfig;
+        if (config == null) {
+            return;
+        }
+        try {
+            peer.saveAssociation();
+        } catch (IOException e) {
+            // the registered peer runs a handshake, as without a stored association
+        }
+        config.destroy();
+    }
+
+    private NTSPeer createPeer(String keHost) {
+        NTSAssociationStore store = associationStore;
+        if (store == null) {
+            return new NTSPeer(keHost, null);
+        }
+        NTSConfig config;
+        try {
+            config = store.take(keHost);
+        } catch (IOException e) {
+            // unreadable or not removable, run a handshake as without a store
+            config = null;
+        }
+        NTSPeer peer = new NTSPeer(keHost, config);
+        peer.setAssociationStore(store);
+        return peer;
+    }
+
+    /**
+     * Registers the peer of a server, replacing and releasing the one already registered, if different.
+     *
+     * @param host the address of the server.
+     * @param peer the peer.
+     */
+    public void register(InetAddress host, NTSPeer peer) {
+        Entry previous = peers.put(host, new Entry(peer));
+        if (previous != null && previous.peer != peer) {
+            previous.peer.release();
+        }
+        evict();
+    }
+
+    /**
+     * Removes the peer of a server. The peer is returned as is, it is up to the caller to release it.
+     *
+     * @param host the address of the server.
+     * @return the peer removed, or null if there was none.
+     */
+    public NTSPeer remove(InetAddress host) {
+        Entry entry = peers.remove(host);
+        return entry == null ? null : entry.peer;
+    }
+
+    /**
+     * @return a snapshot of the registered peers.
+     */
+    public Map<InetAddress, NTSPeer> snapshot() {
+        Map<InetAddress, NTSPeer> snapshot = new HashMap<>();
+        peers.forEach((host, entry) -> snapshot.put(host, entry.peer));
+        return snapshot;
+    }
+
+    /**
+     * Evicts and releases the peers that have been idle for longer than the maximum idle time.
+     *
+     * @return the number of peers evicted.
+     */
+    public int evictIdle() {
+        final long now = System.nanoTime();
+        int evicted = 0;
+        for (Map.Entry<InetAddress, Entry> e : peers.entrySet()) {
+            if (now - e.getValue().lastUsedNanos > maxIdleNanos && evict(e.getKey(), e.getValue())) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Evicts idle peers, then the least recently used ones until the registry is back under its maximum size. A single
+     * thread sweeps at a time; it removes a few more peers than strictly needed so that adding peers to a full
+     * registry does not sweep it each time.
+     */
+    private void evict() {
+        if (peers.size() <= maxSize || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            evictIdle();
+            int excess = peers.size() - maxSize;
+            if (excess <= 0) {
+                return;
+            }
+            int count = excess + maxSize / 16;
+            // Keep the count least recently used entries, the most recently used of them at the head
+            PriorityQueue<Candidate> lru = new PriorityQueue<>(count + 1, Comparator.comparingLong((Candidate c) -> c.lastUsedNanos).reversed());
+            for (Map.Entry<InetAddress, Entry> e : peers.entrySet()) {
+                lru.add(new Candidate(e.getKey(), e.getValue()));
+                if (lru.size() > count) {
+                    lru.poll();
+                }
+            }
+            for (Candidate candidate : lru) {
+                evict(candidate.host, candidate.entry);
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static final class Candidate {
+        final InetAddress host;
+        final Entry entry;
+        final long lastUsedNanos;
+
+        Candidate(InetAddress host, Entry entry) {
+            this.host = host;
+            this.entry = entry;
+            this.lastUsedNanos = entry.lastUsedNanos;
+        }
+    }
+
+    private boolean evict(InetAddress host, Entry entry) {
+        if (peers.remove(host, entry)) {
+            entry.peer.release();
+            return true;
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,352 @@
+package nts;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-running poller of NTS servers with a poll interval adapted to each server.
+ * <p>
+ * The polls are timers on one scheduling thread and the queries are {@link NTSUDPClient#getTimeAsync(InetAddress, int)}
+ * calls, so with the {@link NTSUDPClient#setUseDatagramEngine(boolean) datagram engine} no thread waits for a response
+ * and many servers cost one selector and one timer thread. Each server has its own poll exponent, the interval being
+ * 2^exponent seconds between {@link NtpV3Packet#NTP_MINPOLL} and {@link NtpV3Packet#NTP_MAXPOLL} by default. As in the
+ * poll adjustment of RFC 5905 section 11.3, a counter grows by the exponent when the difference to the previous offset
+ * is within four times the jitter of the previous differences and drops by twice the exponent otherwise; the exponent
+ * is raised when the counter passes {@link #POLL_LIMIT} and lowered when it falls under its opposite. A server that
+ * fails is backed off by one exponent.
+ * The first poll of each server is delayed by a random part of its interval and each interval is shortened by a random
+ * part of up to 1/8, so that servers added together do not poll together.
+ * </p>
+ */
+public final class NTSPollScheduler implements Closeable {
+
+    /** Threshold of the poll adjustment counter, as LIMIT in RFC 5905. */
+    public static final int POLL_LIMIT = 30;
+
+    /** Multiple of the jitter within which a new offset counts as stable, as PGATE in RFC 5905. */
+    public static final int POLL_GATE = 4;
+
+    /**
+     * Receives the results of the polls. The methods are called on the scheduling thread and should return quickly.
+     */
+    public interface Listener {
+        /**
+         * @param host the server polled.
+         * @param info its response.
+         */
+        void onSample(InetAddress host, TimeInfo info);
+
+        /**
+         * @param host  the server polled.
+         * @param error the reason of the failure.
+         */
+        default void onError(InetAddress host, Throwable error) {
+        }
+    }
+
+    /**
+     * Poll exponent of one server, adjusted after each poll as in RFC 5905 section 11.3. Not thread-safe, each poll
+     * guards its own with its lock.
+     */
+    static final class PollInterval {
+        int exponent;
+        int counter;
+        double jitterNanos;
+        long lastOffsetNanos;
+        // offsets seen, counted up to 2: the gate applies from the second difference on
+        int samples;
+
+        PollInterval(final int exponent) {
+            this.exponent = exponent;
+        }
+
+        /**
+         * Adjusts the exponent after a response.
+         *
+         * @param offsetNanos    the offset measured.
+         * @param precisionNanos the precision of the server, the floor of its jitter.
+         * @param minPoll        the minimum exponent.
+         * @param maxPoll        the maximum exponent.
+         */
+        void sample(final long offsetNanos, final double precisionNanos, final int minPoll, final int maxPoll) {
+            if (samples == 0) {
+                samples = 1;
+                lastOffsetNanos = offsetNanos;
+                clamp(minPoll, maxPoll);
+                return;
+            }
+            final double diff = Math.abs(offsetNanos - lastOffsetNanos);
+            lastOffsetNanos = offsetNanos;
+            if (samples == 1) {
+                // the first difference only seeds the jitter, there is nothing yet to compare it with
+                samples = 2;
+                jitterNanos = Math.max(precisionNanos, diff);
+                clamp(minPoll, maxPoll);
+                return;
+            }
+            // compared with the jitter of the previous differences: averaged with this one first, it would always pass
+            final boolean stable = diff < POLL_GATE * jitterNanos;
+            // exponential average of the squared differences, weight 1/4 as AVG in RFC 5905
+            jitterNanos = Math.max(precisionNanos, Math.sqrt(jitterNanos * jitterNanos + (diff * diff - jitterNanos * jitterNanos) / 4));
+            // at least one step, so that the counter also moves at exponent 0
+            final int step = Math.max(1, exponent);
+            if (stable) {
+                counter += step;
+                if (counter > POLL_LIMIT) {
+                    exponent++;
+                    counter = 0;
+                }
+            } else {
+                counter -= 2 * step;
+                if (counter < -POLL_LIMIT) {
+                    exponent--;
+                    counter = 0;
+                }
+            }
+            clamp(minPoll, maxPoll);
+        }
+
+        /**
+         * Backs off by one exponent after a failed poll.
+         *
+         * @param minPoll the minimum exponent.
+         * @param maxPoll the maximum exponent.
+         */
+        void failure(final int minPoll, final int maxPoll) {
+            exponent++;
+            counter = 0;
+            clamp(minPoll, maxPoll);
+        }
+
+        private void clamp(final int minPoll, final int maxPoll) {
+            exponent = Math.max(minPoll, Math.min(maxPoll, exponent));
+        }
+    }
+
+    private final class Poll implements Runnable {
+        final InetAddress host;
+        final int port;
+        // guarded by this
+        final PollInterval interval;
+        Future<?> timer;
+        CompletableFuture<TimeInfo> query;
+        boolean cancelled;
+
+        Poll(final InetAddress host, final int port, final int exponent) {
+            this.host = host;
+            this.port = port;
+            this.interval = new PollInterval(exponent);
+        }
+
+        @Override
+        public void run() {
+            final CompletableFuture<TimeInfo> future;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                future = client.getTimeAsync(host, port);
+                query = future;
+            }
+            future.whenComplete((info, error) -> {
+                try {
+                    scheduler.execute(() -> completed(this, info, error));
+                } catch (RejectedExecutionException e) {
+                    // closed meanwhile
+                }
+            });
+        }
+    }
+
+    private final NTSUDPClient client;
+    private final Listener listener;
+    private final ScheduledExecutorService scheduler;
+    private final boolean ownedScheduler;
+    private final ConcurrentHashMap<InetAddress, Poll> polls = new ConcurrentHashMap<>();
+    private volatile int minPoll = NtpV3Packet.NTP_MINPOLL;
+    private volatile int maxPoll = NtpV3Packet.NTP_MAXPOLL;
+    private volatile boolean closed;
+
+    /**
+     * Creates a scheduler with a scheduling thread of its own.
+     *
+     * @param client   the client used for the queries.
+     * @param listener receives the results.
+     */
+    public NTSPollScheduler(final NTSUDPClient client, final Listener listener) {
+        this(client, listener, Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "nts-poll-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }), true);
+    }
+
+    /**
+     * Creates a scheduler running its timers and listener calls on the given executor, which is not shut down by
+     * {@link #close()}.
+     *
+     * @param client    the client used for the queries.
+     * @param listener  receives the results.
+     * @param scheduler the executor of the timers.
+     */
+    public NTSPollScheduler(final NTSUDPClient client, final Listener listener, final ScheduledExecutorService scheduler) {
+        this(client, listener, scheduler, false);
+    }
+
+    private NTSPollScheduler(final NTSUDPClient client, final Listener listener, final ScheduledExecutorService scheduler, final boolean ownedScheduler) {
+        this.client = client;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.ownedScheduler = ownedScheduler;
+    }
+
+    /**
+     * Sets the range of the poll exponents of the servers added afterwards; those already polled are brought into the
+     * range at their next poll.
+     *
+     * @param minPoll the minimum poll exponent, the interval being 2^minPoll seconds.
+     * @param maxPoll the maximum poll exponent.
+     */
+    public void setPollRange(final int minPoll, final int maxPoll) {
+        if (minPoll < 0 || maxPoll < minPoll || maxPoll > 17) {
+            throw new IllegalArgumentException("Invalid poll range: " + minPoll + ".." + maxPoll);
+        }
+        this.minPoll = minPoll;
+        this.maxPoll = maxPoll;
+    }
+
+    /**
+     * Starts polling a server on the default NTP port.
+     *
+     * @param host the address of the server.
+     * @see #add(InetAddress, int)
+     */
+    public void add(final InetAddress host) {
+        add(host, NtpV3Packet.NTP_PORT);
+    }
+
+    /**
+     * Starts polling a server at the minimum poll interval, after a random delay within that interval. Adding a server
+     * already polled does nothing.
+     *
+     * @param host the address of the server.
+     * @param port the port of the server.
+     */
+    public void add(final InetAddress host, final int port) {
+        if (closed) {
+            throw new IllegalStateException("Scheduler closed");
+        }
+        final Poll poll = new Poll(host, port, minPoll);
+        if (polls.putIfAbsent(host, poll) != null) {
+            return;
+        }
+        synchronized (poll) {
+            final long interval = TimeUnit.SECONDS.toMillis(1L << poll.interval.exponent);
+            poll.timer = scheduler.schedule(poll, ThreadLocalRandom.current().nextLong(interval), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops polling a server. A query in flight is cancelled.
+     *
+     * @param host the address of the server.
+     * @return true if the server was polled.
+     */
+    public boolean remove(final InetAddress host) {
+        final Poll poll = polls.remove(host);
+        if (poll == null) {
+            return false;
+        }
+        cancel(poll);
+        return true;
+    }
+
+    /**
+     * @return the servers polled.
+     */
+    public List<InetAddress> getHosts() {
+        return new ArrayList<>(polls.keySet());
+    }
+
+    /**
+     * @param host the address of the server.
+     * @return the current poll exponent of the server, or -1 if it is not polled.
+     */
+    public int getPollExponent(final InetAddress host) {
+        final Poll poll = polls.get(host);
+        if (poll == null) {
+            return -1;
+        }
+        synchronized (poll) {
+            return poll.interval.exponent;
+        }
+    }
+
+    private void completed(final Poll poll, final TimeInfo info, final Throwable error) {
+        synchronized (poll) {
+            if (poll.cancelled) {
+                return;
+            }
+            if (error == null) {
+                poll.interval.sample(info.offsetNanos(), Math.scalb(1e9, info.getMessage().getPrecision()), minPoll, maxPoll);
+            } else {
+                // back off from a server that does not answer
+                poll.interval.failure(minPoll, maxPoll);
+            }
+            poll.query = null;
+            final long interval = TimeUnit.SECONDS.toMillis(1L << poll.interval.exponent);
+            final long delay = interval - ThreadLocalRandom.current().nextLong(interval / 8 + 1);
+            try {
+                poll.timer = scheduler.schedule(poll, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                poll.cancelled = true;
+            }
+        }
+        try {
+            if (error == null) {
+                listener.onSample(poll.host, info);
+            } else {
+                listener.onError(poll.host, error);
+            }
+        } catch (RuntimeException e) {
+            // a failing listener must not stop the polls
+        }
+    }
+
+    private static void cancel(final Poll poll) {
+        synchronized (poll) {
+            poll.cancelled = true;
+            if (poll.timer != null) {
+                poll.timer.cancel(false);
+            }
+            if (poll.query != null) {
+                poll.query.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Stops all the polls and cancels the queries in flight. The scheduling thread, if owned, is shut down.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (final InetAddress host : new ArrayList<>(polls.keySet())) {
+            remove(host);
+        }
+        if (ownedScheduler) {
+            scheduler.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package nts;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One warm-up round: NTS-KE handshakes with several servers, at most a given number at a time, until all of them are
+ * done or the deadline passes. Peers that already have a usable association are not touched. Handshakes not started by
+ * the deadline are not started at all; those running then go on in the background and their peers become ready later.
+ */
+final class NTSPrewarm {
+
+    private final NTSUDPClient client;
+    private final List<InetAddress> hosts;
+    private final int parallelism;
+    private final long timeoutMillis;
+
+    private final CompletableFuture<List<InetAddress>> result = new CompletableFuture<>();
+    // guarded by this
+    private int next;
+    private int running;
+
+    NTSPrewarm(NTSUDPClient client, Collection<InetAddress> hosts, int parallelism, long timeoutMillis) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Handshake parallelism must be at least 1: " + parallelism);
+        }
+        this.client = client;
+        this.hosts = new ArrayList<>(new LinkedHashSet<>(hosts));
+        this.parallelism = parallelism;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    CompletableFuture<List<InetAddress>> start() {
+        if (timeoutMillis > 0) {
+            CompletableFuture.delayedExecutor(timeoutMillis, TimeUnit.MILLISECONDS).execute(this::finish);
+        }
+        fill();
+        finishIfDone();
+        return result;
+    }
+
+    // Starts handshakes until all the slots are taken or all the hosts are done
+    private void fill() {
+        while (true) {
+            final InetAddress host;
+            synchronized (this) {
+                if (result.isDone() || running >= parallelism || next >= hosts.size()) {
+                    return;
+                }
+                host = hosts.get(next++);
+                running++;
+            }
+            // Looked up without the lock, creating a peer may read its association from the association store
+            NTSPeer peer = client.getNtsPeer(host);
+            CompletableFuture<NTSConfig> handshake = peer.isReady() ? null : peer.refreshAsync();
+            if (handshake == null || handshake.isDone()) {
+                // ready already, or the handshake is backing off: the slot is free again
+                synchronized (this) {
+                    running--;
+                }
+            } else {
+                handshake.whenComplete((config, error) -> onComplete());
+            }
+        }
+    }
+
+    private void onComplete() {
+        synchronized (this) {
+            running--;
+        }
+        fill();
+        finishIfDone();
+    }
+
+    private void finishIfDone() {
+        synchronized (this) {
+            if (running > 0 || next < hosts.size()) {
+                return;
+            }
+        }
+        finish();
+    }
+
+    private void finish() {
+        if (result.isDone()) {
+            return;
+        }
+        List<InetAddress> ready = new ArrayList<>();
+        for (InetAddress host : hosts) {
+            NTSPeer peer = client.getPeerRegistry().get(host);
+            if (peer != null && peer.isReady()) {
+                ready.add(host);
+            }
+        }
+        result.complete(Collections.unmodifiableList(ready));
+    }
+
+}
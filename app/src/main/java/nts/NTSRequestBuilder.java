@@ -0,0 +1,130 @@
+package nts;
+
+import nts.NTSExtensionFields.FieldType;
+import nts.NTSExtensionFields.NTSExtensionField;
+
+/**
+ * Lays out the extension fields of an NTS request (RFC 8915 section 5.7) directly into one pre-sized buffer.
+ * <p>
+ * The final packet length is known as soon as the cookie and the number of placeholders are set, so the Unique
+ * Identifier, the NTS Cookie, the Cookie Placeholders and the NTS Authenticator and Encrypted Extension Fields are
+ * written in a single pass without intermediate {@link NTSExtensionField} objects. The nonce and ciphertext of the
+ * Authenticator field are left zeroed, to be patched in place once the packet has been timestamped.
+ * </p>
+ */
+public class NTSRequestBuilder {
+
+    /** Length of the NTP header that precedes the extension fields. */
+    public static final int NTP_HEADER_LENGTH = 48;
+
+    private static final int EF_HEADER_LENGTH = 4;
+    private static final int CIPHERTEXT_LENGTH = 16;
+
+    /** Length of the NTS Authenticator and Encrypted Extension Field of a request, which has no encrypted fields. */
+    public static final int AUTH_AND_ENC_LENGTH = EF_HEADER_LENGTH + 4 + NTSEntropySource.NONCE_LENGTH + CIPHERTEXT_LENGTH;
+
+    private byte[] cookie;
+    private int numPlaceholders;
+    private NTSEntropySource entropySource = NTSEntropySource.getDefault();
+
+    /**
+     * Sets the cookie to send with the request.
+     *
+     * @param cookie a cookie received from the NTS KE process or from a server response.
+     * @return this builder.
+     */
+    public NTSRequestBuilder setCookie(byte[] cookie) {
+        this.cookie = cookie;
+        return this;
+    }
+
+    /**
+     * Sets the number of Cookie Placeholder Extension Fields, each one requests an additional cookie.
+     *
+     * @param numPlaceholders number of placeholders, negative values are treated as 0.
+     * @return this builder.
+     */
+    public NTSRequestBuilder setPlaceholders(int numPlaceholders) {
+        this.numPlaceholders = Math.max(0, numPlaceholders);
+        return this;
+    }
+
+    /**
+     * Sets the source of the unique identifier.
+     *
+     * @param entropySource the entropy source, {@link NTSEntropySource#getDefault()} by default.
+     * @return this builder.
+     */
+    public NTSRequestBuilder setEntropySource(NTSEntropySource entropySource) {
+        this.entropySource = entropySource;
+        return this;
+    }
+
+    /**
+     * @return the total length of the extension fields written by {@link #writeTo(byte[], int)}.
+     */
+    public int getExtensionFieldsLength() {
+        if (cookie == null) {
+            throw new IllegalStateException("A cookie is required to build an NTS request");
+        }
+        int cookieFieldLength = EF_HEADER_LENGTH + cookie.length;
+        return EF_HEADER_LENGTH + NTSEntropySource.UNIQUE_IDENTIFIER_LENGTH
+                + cookieFieldLength * (1 + numPlaceholders)
+                + AUTH_AND_ENC_LENGTH;
+    }
+
+    /**
+     * @return the length of the complete request, NTP header included.
+     */
+    public int getPacketLength() {
+        return NTP_HEADER_LENGTH + getExtensionFieldsLength();
+    }
+
+    /**
+     * Writes all the extension fields of the request.
+     *
+     * @param buf    the packet buffer, must have at least {@link #getExtensionFieldsLength()} bytes after offset.
+     *               The bodies of the placeholders and of the Authenticator field must be zeroed.
+     * @param offset the position of the first extension field, usually the end of the NTP header.
+     * @return the offset of the NTS Authenticator and Encrypted Extension Field, i.e. the associated data length.
+     */
+    public int writeTo(byte[] buf, int offset) {
+        int cookieFieldLength = EF_HEADER_LENGTH + cookie.length;
+
+        // Unique Identifier
+        int idx = NTSExtensionField.writeHeader(buf, offset, FieldType.UNIQUE_IDENTIFIER,
+                EF_HEADER_LENGTH + NTSEntropySource.UNIQUE_IDENTIFIER_LENGTH);
+        entropySource.nextUniqueIdentifier(buf, idx);
+        idx += NTSEntropySource.UNIQUE_IDENTIFIER_LENGTH;
+
+        // Cookie
+        idx = NTSExtensionField.writeHeader(buf, idx, FieldType.NTS_COOKIE, cookieFieldLength);
+        System.arraycopy(cookie, 0, buf, idx, cookie.length);
+        idx += cookie.length;
+
+        // Placeholders, same length as the cookie and zero body
+        for (int i = 0; i < numPlaceholders; i++) {
+            NTSExtensionField.writeHeader(buf, idx, FieldType.NTS_COOKIE_PLACEHOLDER, cookieFieldLength);
+            idx += cookieFieldLength;
+        }
+
+        writeAuthAndEncHeader(buf, idx);
+        return idx;
+    }
+
+    /**
+     * Writes the header of the NTS Authenticator and Encrypted Extension Field of a request and the nonce and
+     * ciphertext lengths. The nonce and ciphertext themselves are left untouched.
+     *
+     * @param buf    the packet buffer.
+     * @param offset the position of the extension field.
+     */
+    public static void writeAuthAndEncHeader(byte[] buf, int offset) {
+        int idx = NTSExtensionField.writeHeader(buf, offset, FieldType.NTS_AUTH_AND_ENC, AUTH_AND_ENC_LENGTH);
+        buf[idx] = (byte) ((NTSEntropySource.NONCE_LENGTH >> 8) & 0xFF);
+        buf[idx + 1] = (byte) (NTSEntropySource.NONCE_LENGTH & 0xFF);
+        buf[idx + 2] = (byte) ((CIPHERTEXT_LENGTH >> 8) & 0xFF);
+        buf[idx + 3] = (byte) (CIPHERTEXT_LENGTH & 0xFF);
+    }
+
+}
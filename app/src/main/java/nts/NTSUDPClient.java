@@ -18,16 +18,25 @@
 package nts;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.net.DatagramSocketClient;
 
-import nts.NTSExtensionFields.FieldType;
-import nts.NTSExtensionFields.NTSExtensionField;
-
 /**
  * The NTPUDPClient class is a UDP implementation of a client for the Network Time Protocol (NTP) described in RFC 1305 as well as the Simple Network Time
  * Protocol (SNTP) in RFC-2030. To use the class, merely open a local datagram socket with <a href="#open"> open </a> and call <a href="#getTime"> getTime </a>
@@ -41,27 +50,164 @@ public final class NTSUDPClient extends DatagramSocketClient {
 
     private int version = NtpV3Packet.VERSION_4;
 
-    private List<NTSPeer> peers = new ArrayList<>();
+    private final NTSPeerRegistry peers = new NTSPeerRegistry();
+
+    private final ReentrantLock socketLock = new ReentrantLock();
+
+    private volatile Executor asyncExecutor;
+
+    private ExecutorService ownedExecutor;
+
+    private volatile NTSDatagramEngine datagramEngine;
+
+    /** Default number of NTS-KE handshakes run at once by {@link #prewarm(Collection)}. */
+    public static final int DEFAULT_PREWARM_PARALLELISM = 16;
+
+    /** Default time in milliseconds allowed for a time request, waiting for an NTS-KE handshake included. */
+    public static final int DEFAULT_TIMEOUT = 5000;
+
+    /**
+     * Creates a client whose requests time out after {@link #DEFAULT_TIMEOUT}, see {@link #setDefaultTimeout(int)}.
+     */
+    public NTSUDPClient() {
+        setDefaultTimeout(DEFAULT_TIMEOUT);
+    }
+
+    private int getTimeout(final NTSPeer peer) {
+        final int timeout = peer.timeout;
+        return timeout > 0 ? timeout : getDefaultTimeout();
+    }
+
+    NTSPeer getNtsPeer(final InetAddress host) {
+        // The handshake runs later, outside the registry, so that new peers can be set up in parallel
+        return peers.getOrCreate(host);
+    }
+
+    /**
+     * Returns the registry of the NTS peers of this client, e.g. to change its maximum size or idle time.
+     *
+     * @return the peer registry.
+     */
+    public NTSPeerRegistry getPeerRegistry() {
+        return peers;
+    }
+
+    /**
+     * Sets the store where the NTS associations of this client are kept across restarts. Peers created afterwards take
+     * their association from the store instead of running an NTS-KE handshake, when there is one, and save the ones
+     * they negotiate. The store is not closed with the client.
+     *
+     * @param store The association store, or null to keep the associations in memory only.
+     * @see NTSAssociationStore
+     */
+    public void setAssociationStore(final NTSAssociationStore store) {
+        peers.setAssociationStore(store);
+    }
 
-    private NTSPeer getNtsPeer(final InetAddress host) {
-        for (NTSPeer peer : peers) {
-            if (peer.KEHost.equals(host.getHostAddress())) {
-                return peer;
+    /**
+     * Saves the current associations of the peers created with an association store, with the cookies they have left,
+     * e.g. before the process exits. Closing the client does it as well.
+     *
+     * @throws IOException if an association cannot be written; the others are saved nonetheless.
+     */
+    public void saveAssociations() throws IOException {
+        IOException failure = null;
+        for (final NTSPeer peer : peers.snapshot().values()) {
+            try {
+                peer.saveAssociation();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
             }
         }
-        NTSPeer peer = new NTSPeer(host.getHostAddress());
-        peers.add(peer);
-        return peer;
+        if (failure != null) {
+            throw failure;
+        }
     }
 
-    private void removeNtsPeer(final InetAddress host){
-        NTSPeer peer = getNtsPeer(host);
-        if(peer != null)
-        {
-            peers.remove(peer);
+    /**
+     * Establishes the NTS associations of several servers before they are queried, e.g. at service startup, running
+     * up to {@link #DEFAULT_PREWARM_PARALLELISM} NTS-KE handshakes at once and waiting for them at most the
+     * {@link #getDefaultTimeout() default timeout} of this client.
+     *
+     * @param hosts The addresses of the servers.
+     * @return The servers ready to be queried without waiting for a handshake, in the order given.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     * @see #prewarmAsync(Collection, int, long)
+     */
+    public List<InetAddress> prewarm(final Collection<InetAddress> hosts) throws InterruptedIOException {
+        return prewarm(hosts, DEFAULT_PREWARM_PARALLELISM, getDefaultTimeout());
+    }
+
+    /**
+     * Same as {@link #prewarmAsync(Collection, int, long)}, waiting for the result.
+     *
+     * @param hosts         The addresses of the servers.
+     * @param parallelism   The maximum number of handshakes running at once.
+     * @param timeoutMillis The time allowed for the whole round, 0 for no limit.
+     * @return The servers ready to be queried without waiting for a handshake, in the order given.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public List<InetAddress> prewarm(final Collection<InetAddress> hosts, final int parallelism, final long timeoutMillis) throws InterruptedIOException {
+        try {
+            return prewarmAsync(hosts, parallelism, timeoutMillis).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("NTS-KE warm-up interrupted");
+        } catch (ExecutionException e) {
+            // the round never fails, it reports the servers that are ready
+            throw new IllegalStateException(e.getCause());
         }
     }
 
+    /**
+     * Runs the NTS-KE handshakes of several servers concurrently, so that a service waits for one round of handshakes
+     * at startup instead of one handshake after the other on its first queries. The peers of the servers are created
+     * if needed; those with a usable association already, e.g. restored from the
+     * {@link #setAssociationStore(NTSAssociationStore) association store}, are left as they are. At most
+     * {@code parallelism} handshakes run at once, each bounded by the NTS-KE timeout of its peer, on the handshake
+     * executor of the peer.
+     * <p>
+     * The future completes when all the handshakes are done or when the timeout expires, whichever comes first, with
+     * the servers that are ready. It never completes exceptionally: a server whose handshake failed is simply not in the
+     * list, and handshakes are retried on its first query as usual. Handshakes not yet started when the timeout expires
+     * are not started; those running go on in the background.
+     * </p>
+     *
+     * @param hosts         The addresses of the servers.
+     * @param parallelism   The maximum number of handshakes running at once.
+     * @param timeoutMillis The time allowed for the whole round, 0 for no limit.
+     * @return A future completed with the servers ready to be queried without waiting for a handshake, in the order
+     *         given.
+     * @throws IllegalArgumentException if the parallelism is less than 1.
+     */
+    public CompletableFuture<List<InetAddress>> prewarmAsync(final Collection<InetAddress> hosts, final int parallelism, final long timeoutMillis) {
+        return new NTSPrewarm(this, hosts, parallelism, timeoutMillis).start();
+    }
+
+    /**
+     * Registers the NTS peer to use for a server, e.g. an association established by another client. It replaces any peer already known for the server.
+     *
+     * @param host The address of the server.
+     * @param peer The NTS peer.
+     */
+    public void registerPeer(final InetAddress host, final NTSPeer peer) {
+        peers.register(host, peer);
+    }
+
+    /**
+     * Forgets the NTS peer of a server, the next request to it runs a new NTS-KE handshake.
+     *
+     * @param host The address of the server.
+     * @return the peer removed, or null if there was none.
+     */
+    public NTSPeer removePeer(final InetAddress host) {
+        return peers.remove(host);
+    }
+
     /**
      * Retrieves the time information from the specified server on the default NTP port and returns it. The time is the number of milliseconds since 00:00
      * (midnight) 1 January 1900 UTC, as specified by RFC 1305. This method reads the raw NTP packet and constructs a <i>TimeInfo</i> object that allows access
@@ -82,33 +228,204 @@ public final class NTSUDPClient extends DatagramSocketClient {
      *
      * @param host The address of the server.
      * @param port The port of the service.
+     * <p>
+     * The client can be shared by several threads. The shared socket is used by one exchange at a time; a caller finding it busy uses a temporary socket
+     * instead. Each exchange takes its own cookie and requests to different servers do not contend. The call gives up after the timeout of the peer, if set,
+     * or the {@link #getDefaultTimeout() default timeout} of this client.
+     * </p>
+     *
      * @return The time value retrieved from the server.
      * @throws IOException If an error occurs while retrieving the time or if received packet does not match the request.
      */
     public TimeInfo getTime(final InetAddress host, final int port) throws IOException, AuthenticationFailureException, NtsNakException {
+        return getTime(host, port, getTimeout(getNtsPeer(host)));
+    }
 
-        // Check if we have a valid handshake with the host
-        NTSPeer peer = getNtsPeer(host);
-        if(peer.nakReceived)
-        {
-            peer.doHandshake();
+    /**
+     * Retrieves the time information from the specified server and port, giving up after the given time. The timeout spans the whole call: waiting for an
+     * NTS-KE handshake if there is no usable association, sending the request and receiving a matching response.
+     *
+     * @param host          The address of the server.
+     * @param port          The port of the service.
+     * @param timeoutMillis The time allowed in milliseconds, 0 for no limit.
+     * @return The time value retrieved from the server.
+     * @throws java.net.SocketTimeoutException If no valid response arrived in time.
+     * @throws IOException If an error occurs while retrieving the time.
+     */
+    public TimeInfo getTime(final InetAddress host, final int port, final int timeoutMillis) throws IOException, AuthenticationFailureException, NtsNakException {
+        final long deadline = NTSDeadline.after(timeoutMillis);
+        // The shared socket carries one exchange at a time, concurrent callers use a socket of their own instead of waiting
+        if (socketLock.tryLock()) {
+            try {
+                // if not connected then open to next available UDP port
+                if (!isOpen()) {
+                    open();
+                }
+                return getTime(checkOpen(), host, port, deadline);
+            } finally {
+                socketLock.unlock();
+            }
+        }
+        try (DatagramSocket socket = new DatagramSocket()) {
+            return getTime(socket, host, port, deadline);
         }
-        NTSConfig ntsConfig = peer.ntsConfig;
+    }
 
-        // if not connected then open to next available UDP port
-        if (!isOpen()) {
-            open();
+    /**
+     * Burst mode, similar to {@code iburst}: sends {@code count} requests in quick succession to the server, each one
+     * after the previous response, and selects the best sample with an {@link NTSClockFilter}.
+     * <p>
+     * All the requests use the same association and a socket of their own. Each one uses a cookie and asks for as many
+     * new ones as the jar is missing, so the jar is as full after the burst as before. A request that times out or
+     * fails authentication only loses its sample; each request gets the timeout of the peer, if set, or the
+     * {@link #getDefaultTimeout() default timeout} of this client.
+     * </p>
+     *
+     * @param host  The address of the server.
+     * @param port  The port of the service.
+     * @param count The number of requests, at least 1.
+     * @return The clock filter over the samples received.
+     * @throws IOException If no sample was received; the error of the last request is rethrown.
+     * @throws NtsNakException If the server rejected the cookies, the burst stops there.
+     */
+    public NTSClockFilter getTimeBurst(final InetAddress host, final int port, final int count) throws IOException, AuthenticationFailureException, NtsNakException {
+        if (count < 1) {
+            throw new IllegalArgumentException("Burst count must be at least 1: " + count);
+        }
+        final int timeout = getTimeout(getNtsPeer(host));
+        final List<TimeInfo> samples = new ArrayList<>(count);
+        Exception lastError = null;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            for (int i = 0; i < count; i++) {
+                try {
+                    samples.add(getTime(socket, host, port, NTSDeadline.after(timeout)));
+                } catch (SocketTimeoutException | AuthenticationFailureException e) {
+                    lastError = e;
+                }
+            }
         }
+        if (samples.isEmpty()) {
+            if (lastError instanceof AuthenticationFailureException) {
+                throw (AuthenticationFailureException) lastError;
+            }
+            throw (IOException) lastError;
+        }
+        return NTSClockFilter.select(samples);
+    }
 
-        // Craft the client message
-        final NtsImpl message = new NtsImpl(ntsConfig.C2SKey);
+    /**
+     * Retrieves the time information from the specified server on the default NTP port without blocking the caller.
+     *
+     * @param host The address of the server.
+     * @return A future completed with the time value retrieved from the server, or exceptionally with the error that
+     *         {@link #getTime(InetAddress)} would have thrown.
+     * @see #getTimeAsync(InetAddress, int)
+     */
+    public CompletableFuture<TimeInfo> getTimeAsync(final InetAddress host) {
+        return getTimeAsync(host, NtpV3Packet.NTP_PORT);
+    }
+
+    /**
+     * Retrieves the time information from the specified server and port without blocking the caller. Each call runs on the executor set with
+     * {@link #setAsyncExecutor(Executor)} (or the one selected with {@link #setUseVirtualThreads(boolean)}) using its own UDP socket, so many servers can be
+     * queried concurrently and the total time is close to the slowest round trip rather than the sum of all of them. As for
+     * {@link #getTime(InetAddress, int)}, the timeout of the peer or the {@link #getDefaultTimeout() default timeout} of this client spans the whole call,
+     * counted from now.
+     *
+     * @param host The address of the server.
+     * @param port The port of the service.
+     * @return A future completed with the time value retrieved from the server, or exceptionally with the error that
+     *         {@link #getTime(InetAddress, int)} would have thrown.
+     */
+    public CompletableFuture<TimeInfo> getTimeAsync(final InetAddress host, final int port) {
+        final NTSPeer peer = getNtsPeer(host);
+        final int timeout = getTimeout(peer);
+        final long deadline = NTSDeadline.after(timeout);
+        final NTSDatagramEngine engine = datagramEngine;
+        if (engine != null) {
+            // Waits for the NTS-KE handshake, if needed, without holding the calling thread
+            return engine.getTime(peer, host, port, timeout);
+        }
+
+        final CompletableFuture<TimeInfo> future = new CompletableFuture<>();
+        try {
+            getAsyncExecutor().execute(() -> {
+                if (future.isDone()) {
+                    return; // cancelled before it started
+                }
+                try (DatagramSocket socket = new DatagramSocket()) {
+                    future.complete(getTime(socket, host, port, deadline));
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Queries all the specified servers at once on the default NTP port and completes as soon as the required number of
+     * them have answered with a verified response.
+     *
+     * @param hosts    The addresses of the servers.
+     * @param required The number of verified responses needed, between 1 and the number of servers.
+     * @return A future completed with the responses in their order of arrival.
+     * @see #getTimeHedged(List, int, int, long)
+     */
+    public CompletableFuture<List<TimeInfo>> getTimeHedged(final List<InetAddress> hosts, final int required) {
+        return getTimeHedged(hosts, NtpV3Packet.NTP_PORT, required, 0);
+    }
+
+    /**
+     * Hedged query of several servers, to bound the tail latency due to a slow server or a lost packet. With no hedge
+     * delay, a request is sent to every server at once. Otherwise requests go to the first {@code required} servers,
+     * then to one more server after each hedge delay until enough responses arrive; a request that fails is replaced at
+     * once by a request to the next server. Each request is an authenticated {@link #getTimeAsync(InetAddress, int)}
+     * with the timeout of its peer.
+     * <p>
+     * The future completes as soon as {@code required} verified responses have arrived, and the requests still running
+     * are then cancelled; their late responses are ignored. Each of them used a cookie without getting fresh ones back,
+     * which the low watermark of the peer makes up for. The future fails with an {@link IOException}, holding the
+     * errors of the servers as suppressed exceptions, once too many requests have failed for the required number to be
+     * reached. Cancelling the future cancels the requests still running.
+     * </p>
+     *
+     * @param hosts            The addresses of the servers, in order of preference.
+     * @param port             The port of the service.
+     * @param required         The number of verified responses needed, between 1 and the number of servers.
+     * @param hedgeDelayMillis The delay before each additional request, or 0 to query all the servers at once.
+     * @return A future completed with the responses in their order of arrival.
+     * @throws IllegalArgumentException if the number of required responses is out of range.
+     */
+    public CompletableFuture<List<TimeInfo>> getTimeHedged(final List<InetAddress> hosts, final int port, final int required, final long hedgeDelayMillis) {
+        return new NTSHedgedRequest(this, hosts, port, required, hedgeDelayMillis).start();
+    }
+
+    private TimeInfo getTime(final DatagramSocket socket, final InetAddress host, final int port, final long deadline) throws IOException, AuthenticationFailureException, NtsNakException {
+
+        // Check if we have a valid handshake with the host, and take one of the negotiated cookies along
+        NTSPeer peer = getNtsPeer(host);
+        NTSPeer.ReadyConfig ready = peer.getReadyConfig(deadline);
+        NTSConfig ntsConfig = ready.config;
+
+        // Replace used cookies, minus those the requests in flight will bring back
+        final int ncookies_needed = ready.requestedCookies;
+        try {
+            return exchange(socket, host, port, deadline, peer, ntsConfig, ready.cookie, ncookies_needed);
+        } finally {
+            // after the response, if any, stored its cookies
+            ntsConfig.releaseRequestedCookies(ncookies_needed);
+        }
+    }
 
-        // Use one of the negotiated cookies
-        byte [] cookie = ntsConfig.cookies.get(0);
-        ntsConfig.cookies.remove(0);
+    private TimeInfo exchange(final DatagramSocket socket, final InetAddress host, final int port, final long deadline, final NTSPeer peer,
+            final NTSConfig ntsConfig, final byte[] cookie, final int ncookies_needed) throws IOException, AuthenticationFailureException, NtsNakException {
+        NTSCryptoContext cryptoContext = ntsConfig.getCryptoContext();
 
-        // Replace used cookies (try to maintain a backlog of 8)
-        final int ncookies_needed = 8 - ntsConfig.cookies.size();
+        // Craft the client message
+        final NtsImpl message = new NtsImpl(cryptoContext.getC2SAead());
         message.buildRequest(cookie, ncookies_needed);
 
         // Obtain the datagram packets for the request and response
@@ -116,14 +433,16 @@ public final class NTSUDPClient extends DatagramSocketClient {
         sendPacket.setAddress(host);
         sendPacket.setPort(port);
 
-        final NtsPacket recMessage = new NtsImpl(ntsConfig.S2CKey);
+        final NtsImpl recMessage = new NtsImpl(cryptoContext.getS2CAead());
         final DatagramPacket receivePacket = recMessage.getDatagramPacket(sendPacket.getLength());
+        final int receiveCapacity = receivePacket.getData().length;
+        final String what = "NTS request to " + host.getHostAddress();
 
         /*
          * Must minimize the time between getting the current time, timestamping the packet, and sending it out which introduces an error in the delay time. No
          * extraneous logging and initializations here !!!
          */
-        final TimeStamp now = TimeStamp.getCurrentTime();
+        final TimeStamp now = TimeStamp.getPreciseCurrentTime();
 
         // Note that if you do not set the transmit time field then originating time
         // in server response is all 0's which is "Thu Feb 07 01:28:16 EST 2036".
@@ -131,37 +450,147 @@ public final class NTSUDPClient extends DatagramSocketClient {
         // And now we can create the authentication and encryption Extension Field
         message.createAuthAndEncEF();
 
-        checkOpen().send(sendPacket);
-        checkOpen().receive(receivePacket);
+        socket.send(sendPacket);
+        Instant returnTime;
+        long receivedNanos;
+        NtsNakException nak = null;
+        while (true) {
+            try {
+                // A lost datagram costs at most the time left until the deadline
+                socket.setSoTimeout(NTSDeadline.remainingMillis(deadline, what));
+                receivePacket.setLength(receiveCapacity);
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                if (nak != null) {
+                    // RFC8915: store the fact that a NAK has been received
+                    // And try to re-initiate the handshake (but don't throw out the old cookies)
+                    peer.reportNak();
+                    throw nak;
+                }
+                throw e;
+            }
+            // t4 is read as the datagram arrives, matching, verification and decryption come after it
+            returnTime = Instant.now();
+            receivedNanos = System.nanoTime();
+            // Late responses to earlier requests on the same socket are skipped, not taken as failures
+            if (!recMessage.matchesUniqueIdentifierOf(message)) {
+                continue;
+            }
+            // Prevent invalid time information if response does not match request
+            try {
+                recMessage.validate(message);
+                break;
+            } catch (NtsNakException e) {
+                // A NAK is not authenticated, anyone who saw the request can send one: keep waiting for an
+                // authenticated response and only act on the NAK at the deadline
+                nak = e;
+            }
+        }
+        peer.nakReceived = false;
+        ntsConfig.addCookies(recMessage.getNewCookies());
 
-        final long returnTimeMillis = System.currentTimeMillis();
+        // create TimeInfo message container but don't pre-compute the details yet
+        final TimeInfo info = new TimeInfo(recMessage, returnTime, false);
+        info.setProcessingNanos(System.nanoTime() - receivedNanos);
+        return info;
+    }
 
-        // Prevent invalid time information if response does not match request
-        try
-        {
-            recMessage.validate(message);
-            peer.nakReceived = false;
+    /**
+     * Sets the executor used by {@link #getTimeAsync(InetAddress, int)}. Each asynchronous query blocks one task of the executor until the response arrives
+     * or times out, so the executor should be able to run as many tasks as concurrent queries.
+     *
+     * @param executor the executor, or null to use the default one: a cached pool of daemon threads owned by this client.
+     */
+    public synchronized void setAsyncExecutor(final Executor executor) {
+        shutdownOwnedExecutor();
+        this.asyncExecutor = executor;
+    }
 
-            List<NTSExtensionField> new_cookies = recMessage.getExtensionFields(FieldType.NTS_COOKIE.getValue());
-            for(NTSExtensionField new_cookie: new_cookies)
-            {
-                ntsConfig.cookies.add(new_cookie.body);
-            }
+    /**
+     * Runs asynchronous queries on virtual threads, one per query.
+     *
+     * @param useVirtualThreads true to use a virtual thread per query, false to go back to the default executor.
+     * @see #setAsyncExecutor(Executor)
+     */
+    public synchronized void setUseVirtualThreads(final boolean useVirtualThreads) {
+        shutdownOwnedExecutor();
+        this.asyncExecutor = null;
+        if (useVirtualThreads) {
+            ownedExecutor = Executors.newVirtualThreadPerTaskExecutor();
+            asyncExecutor = ownedExecutor;
         }
-        catch( NtsNakException e)
-        {
-            // RFC8915: store the fact that a NAK has been received
-            // And try to re-initiate the handshake (but don't throw out the old cookies)
-            peer.nakReceived = true;
-            throw e;
+    }
+
+    /**
+     * Sends asynchronous queries through a single non-blocking {@link NTSDatagramEngine} instead of one blocking socket per query. Many queries can then be
+     * in flight at once without a thread per query; NTS-KE handshakes run in the background on the handshake executor of each {@link NTSPeer}.
+     *
+     * @param useDatagramEngine true to use the engine for {@link #getTimeAsync(InetAddress, int)}.
+     * @throws IOException if the engine cannot be opened.
+     */
+    public synchronized void setUseDatagramEngine(final boolean useDatagramEngine) throws IOException {
+        if (useDatagramEngine && datagramEngine == null) {
+            datagramEngine = new NTSDatagramEngine();
+        } else if (!useDatagramEngine && datagramEngine != null) {
+            datagramEngine.close();
+            datagramEngine = null;
         }
-        catch(Exception e)
-        {
-            throw e;
+    }
+
+    private Executor getAsyncExecutor() {
+        Executor executor = asyncExecutor;
+        if (executor != null) {
+            return executor;
         }
+        synchronized (this) {
+            if (asyncExecutor == null) {
+                ownedExecutor = Executors.newCachedThreadPool(runnable -> {
+                    Thread thread = new Thread(runnable, "nts-client-async");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                asyncExecutor = ownedExecutor;
+            }
+            return asyncExecutor;
+        }
+    }
 
-        // create TimeInfo message container but don't pre-compute the details yet
-        return new TimeInfo(recMessage, returnTimeMillis, false);
+    private void shutdownOwnedExecutor() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+            ownedExecutor = null;
+        }
+    }
+
+    /**
+     * Closes the shared socket, the datagram engine and stops the executor created by this client for asynchronous queries, if any. Queries already
+     * running on the executor are allowed to finish, queries in flight on the engine fail. The associations are saved to the association store, if any.
+     */
+    @Override
+    public void close() {
+        try {
+            saveAssociations();
+        } catch (IOException e) {
+            // the peers that could not be saved run a handshake after the restart
+        }
+        synchronized (this) {
+            shutdownOwnedExecutor();
+            asyncExecutor = null;
+            if (datagramEngine != null) {
+                try {
+                    datagramEngine.close();
+                } catch (IOException e) {
+                    // nothing else to release
+                }
+                datagramEngine = null;
+            }
+        }
+        socketLock.lock();
+        try {
+            super.close();
+        } finally {
+            socketLock.unlock();
+        }
     }
 
     /**
@@ -200,6 +200,16 @@ public class NtpV3Impl implements NtpV3Packet {
         return getTimestamp(ORIGINATE_TIMESTAMP_INDEX);
     }
 
+    /**
+     * Returns the {@code originate} time as defined in RFC-1305 as its raw 64-bit value, read from the packet without allocating.
+     *
+     * @return the {@code originate} time as an unsigned 64-bit NTP value.
+     */
+    @Override
+    public long getOriginateTimeStampValue() {
+        return getLong(ORIGINATE_TIMESTAMP_INDEX);
+    }
+
     /**
      * Returns poll interval as defined in RFC-1305, which is an eight-bit signed integer indicating the maximum interval between successive messages, in
      * seconds to the nearest power of two (e.g. value of six indicates an interval of 64 seconds). The values that can appear in this field range from
@@ -232,6 +242,16 @@ public class NtpV3Impl implements NtpV3Packet {
         return getTimestamp(RECEIVE_TIMESTAMP_INDEX);
     }
 
+    /**
+     * Returns the {@code receive} time as defined in RFC-1305 as its raw 64-bit value, read from the packet without allocating.
+     *
+     * @return the {@code receive} time as an unsigned 64-bit NTP value.
+     */
+    @Override
+    public long getReceiveTimeStampValue() {
+        return getLong(RECEIVE_TIMESTAMP_INDEX);
+    }
+
     /**
      * Returns the reference id as defined in RFC-1305, which is a 32-bit integer whose value is dependent on several criteria.
      *
@@ -366,6 +386,16 @@ public class NtpV3Impl implements NtpV3Packet {
         return getTimestamp(TRANSMIT_TIMESTAMP_INDEX);
     }
 
+    /**
+     * Returns the {@code transmit} timestamp as defined in RFC-1305 as its raw 64-bit value, read from the packet without allocating.
+     *
+     * @return the {@code transmit} timestamp as an unsigned 64-bit NTP value.
+     */
+    @Override
+    public long getTransmitTimeStampValue() {
+        return getLong(TRANSMIT_TIMESTAMP_INDEX);
+    }
+
     /**
      * Return type of time packet. The values (e.g. NTP, TIME, ICMP, ...) correspond to the protocol used to obtain the timing information.
      *
@@ -162,6 +162,13 @@ public interface NtpV3Packet {
      */
     TimeStamp getOriginateTimeStamp();
 
+    /**
+     * @return the {@code originate} time as defined in RFC-1305, as its raw 64-bit value, without creating a TimeStamp
+     */
+    default long getOriginateTimeStampValue() {
+        return getOriginateTimeStamp().ntpValue();
+    }
+
     /**
      * @return poll interval as defined in RFC-1305. Field range between NTP_MINPOLL and NTP_MAXPOLL.
      */
@@ -177,6 +184,13 @@ public interface NtpV3Packet {
      */
     TimeStamp getReceiveTimeStamp();
 
+    /**
+     * @return the {@code receive} time as defined in RFC-1305, as its raw 64-bit value, without creating a TimeStamp
+     */
+    default long getReceiveTimeStampValue() {
+        return getReceiveTimeStamp().ntpValue();
+    }
+
     /**
      * @return the reference id (32-bit code) as defined in RFC-1305
      */
@@ -227,6 +241,13 @@ public interface NtpV3Packet {
      */
     TimeStamp getTransmitTimeStamp();
 
+    /**
+     * @return the {@code transmit} timestamp as defined in RFC-1305, as its raw 64-bit value, without creating a TimeStamp
+     */
+    default long getTransmitTimeStampValue() {
+        return getTransmitTimeStamp().ntpValue();
+    }
+
     /**
      * Return type of time packet. The values (e.g. NTP, TIME, ICMP, ...) correspond to the protocol used to obtain the timing information.
      *
@@ -1,6 +1,7 @@
 package nts;
 
 import nts.NTSExtensionFields.NTSExtensionField;
+import nts.NTSExtensionFields.NTSExtensionFieldCursor;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,9 +26,8 @@ public class NtpV4Impl extends NtpV3Impl implements NtpV4Packet {
         byte []new_buf = new byte[idx+len];
         extensionFields.add(field);
 
-        byte []bb = field.toByteArray();
         System.arraycopy(buf, 0, new_buf, 0, idx);
-        System.arraycopy(bb, 0, new_buf, idx, field.getFieldLength());
+        field.writeTo(new_buf, idx);
 
         buf = new_buf;
     }
@@ -47,22 +47,17 @@ public class NtpV4Impl extends NtpV3Impl implements NtpV4Packet {
         System.arraycopy(buf, 0, new_buf, 0, buf.length);
         int offset = buf.length;
         for (NTSExtensionField ef : extensionFields) {
-            byte[] fieldBytes = ef.toByteArray();
-            System.arraycopy(fieldBytes, 0, new_buf, offset, fieldBytes.length);
-            offset += fieldBytes.length;
+            offset = ef.writeTo(new_buf, offset);
         }
         buf = new_buf;
     }
 
     private void extractExtensionFields()
     {
-        int idx = EF_INDEX;
-
-        while(idx < this.buf.length)
+        NTSExtensionFieldCursor cursor = new NTSExtensionFieldCursor(this.buf, EF_INDEX, this.buf.length);
+        while(cursor.next())
         {
-            NTSExtensionField ef = NTSExtensionField.fromBytes(this.buf, idx);
-            idx += ef.getFieldLength();
-            extensionFields.add(ef);
+            extensionFields.add(cursor.toExtensionField());
         }
     }
 
@@ -121,7 +116,7 @@ public class NtpV4Impl extends NtpV3Impl implements NtpV4Packet {
                 + ", dispersion(ms):" + getRootDispersionInMillisDouble() + ", id:" + getReferenceIdString() + ", xmitTime:"
                 + getTransmitTimeStamp().toDateString() ; //+ " ]";
 
-        for(NTSExtensionField fld : extensionFields)
+        for(NTSExtensionField fld : getExtensionFields())
         {
             res += ", " + fld;
         }
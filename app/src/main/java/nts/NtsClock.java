@@ -0,0 +1,229 @@
+package nts;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+
+/**
+ * Clock disciplined by NTS samples: {@link System#nanoTime()} plus the offset and frequency correction of the last
+ * update.
+ * <p>
+ * The correction is an immutable snapshot published through a volatile field, so reading the clock takes one volatile
+ * read, one {@code System.nanoTime()} call and a few arithmetic operations: no lock, no network and, for
+ * {@link #millis()}, {@link #currentTimeNanos()} and {@link #errorBoundNanos()}, no allocation. {@link #instant()}
+ * allocates the returned Instant as any Clock does. Updates replace the snapshot; they are cheap as well but meant to
+ * follow the polls, not the reads. An update steps the clock to the new offset, which may move it backwards.
+ * </p>
+ * <p>
+ * Clocks derived with {@link #withZone(ZoneId)} share the corrections of this clock.
+ * </p>
+ */
+public final class NtsClock extends Clock {
+
+    /** Growth rate of the error bound since the last update, the frequency tolerance of RFC 5905 (15 ppm). */
+    public static final double PHI = TimeSource.PHI;
+
+    /**
+     * Correction valid from a point of the monotonic clock. Immutable.
+     */
+    private static final class Snapshot {
+        /** {@link System#nanoTime()} at the update. */
+        final long baseMonotonicNanos;
+        /** Corrected time at the update, in nanoseconds since the epoch. */
+        final long baseEpochNanos;
+        /** Fractional frequency correction of the monotonic clock, e.g. 1e-6 if it runs 1 ppm slow. */
+        final double frequency;
+        /** Error bound at the update, or Long.MAX_VALUE if the clock was never updated. */
+        final long errorNanos;
+        /** Growth of the error bound per nanosecond since the update. */
+        final double errorRate;
+
+        Snapshot(final long baseMonotonicNanos, final long baseEpochNanos, final double frequency, final long errorNanos, final double errorRate) {
+            this.baseMonotonicNanos = baseMonotonicNanos;
+            this.baseEpochNanos = baseEpochNanos;
+            this.frequency = frequency;
+            this.errorNanos = errorNanos;
+            this.errorRate = errorRate;
+        }
+
+        long nanosAt(final long monotonicNanos) {
+            final long elapsed = monotonicNanos - baseMonotonicNanos;
+            return baseEpochNanos + elapsed + (long) (elapsed * frequency);
+        }
+    }
+
+    /**
+     * State shared by the clocks of all zones.
+     */
+    private static final class State {
+        volatile Snapshot snapshot;
+    }
+
+    private final State state;
+    private final ZoneId zone;
+
+    /**
+     * Creates a clock in UTC that follows the system clock until its first update.
+     */
+    public NtsClock() {
+        this(new State(), ZoneOffset.UTC);
+        state.snapshot = new Snapshot(System.nanoTime(), systemEpochNanos(), 0, Long.MAX_VALUE, PHI);
+    }
+
+    private NtsClock(final State state, final ZoneId zone) {
+        this.state = state;
+        this.zone = zone;
+    }
+
+    static long systemEpochNanos() {
+        final Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000_000L + now.getNano();
+    }
+
+    /**
+     * Sets the clock to the system clock corrected by an offset, keeping the frequency correction.
+     *
+     * @param offsetNanos the offset of the reference time to the system clock, as measured by NTP.
+     * @param errorNanos  the bound of the error of the offset.
+     */
+    public void update(final long offsetNanos, final long errorNanos) {
+        update(offsetNanos, errorNanos, state.snapshot.frequency);
+    }
+
+    /**
+     * Sets the clock to the system clock corrected by an offset, with a new frequency correction.
+     *
+     * @param offsetNanos the offset of the reference time to the system clock, as measured by NTP.
+     * @param errorNanos  the bound of the error of the offset.
+     * @param frequency   the fractional frequency correction of the monotonic clock, e.g. 1e-6 if it runs 1 ppm slow.
+     */
+    public void update(final long offsetNanos, final long errorNanos, final double frequency) {
+        update(offsetNanos, errorNanos, frequency, PHI);
+    }
+
+    /**
+     * Sets the clock to the system clock corrected by an offset, with a new frequency correction and rate of growth of
+     * the error bound, e.g. from a {@link DriftEstimator} that knows the frequency better than {@link #PHI}.
+     *
+     * @param offsetNanos the offset of the reference time to the system clock, as measured by NTP.
+     * @param errorNanos  the bound of the error of the offset.
+     * @param frequency   the fractional frequency correction of the monotonic clock, e.g. 1e-6 if it runs 1 ppm slow.
+     * @param errorRate   the growth of the error bound per nanosecond until the next update.
+     */
+    public void update(final long offsetNanos, final long errorNanos, final double frequency, final double errorRate) {
+        // the offset is relative to the system clock, read it as close as possible to the monotonic clock
+        final long monotonic = System.nanoTime();
+        final long epoch = systemEpochNanos();
+        set(monotonic, epoch + offsetNanos, errorNanos, frequency, errorRate);
+    }
+
+    /**
+     * Sets the clock to a corrected time at a given point of the monotonic clock, for callers that already read it.
+     *
+     * @param monotonicNanos the value of {@link System#nanoTime()} the time is given at.
+     * @param epochNanos     the corrected time then, in nanoseconds since the epoch.
+     * @param errorNanos     the bound of the error of that time.
+     * @param frequency      the fractional frequency correction of the monotonic clock.
+     * @param errorRate      the growth of the error bound per nanosecond until the next update.
+     */
+    void set(final long monotonicNanos, final long epochNanos, final long errorNanos, final double frequency, final double errorRate) {
+        state.snapshot = new Snapshot(monotonicNanos, epochNanos, frequency, Math.max(0, errorNanos), Math.max(0, errorRate));
+    }
+
+    /**
+     * Sets the clock from the sample of one server. The error bound is its root distance.
+     *
+     * @param info the sample.
+     * @see TimeSource#rootDistanceNanos(TimeInfo)
+     */
+    public void update(final TimeInfo info) {
+        update(info.offsetNanos(), TimeSource.rootDistanceNanos(info));
+    }
+
+    /**
+     * Sets the clock from the combined estimate of several servers.
+     *
+     * @param estimate the estimate.
+     */
+    public void update(final TimeSource.Estimate estimate) {
+        update(estimate.getOffsetNanos(), estimate.getErrorBoundNanos());
+    }
+
+    /**
+     * @return true if the clock has been updated at least once.
+     */
+    public boolean isSynchronized() {
+        return state.snapshot.errorNanos != Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the corrected current time, without locking or allocating.
+     *
+     * @return the number of nanoseconds since January 1, 1970, 00:00:00 GMT.
+     */
+    public long currentTimeNanos() {
+        return state.snapshot.nanosAt(System.nanoTime());
+    }
+
+    /**
+     * Returns the bound of the error of the current time: the error at the last update plus its growth since then,
+     * {@link #PHI} unless the update gave another rate.
+     *
+     * @return the error bound in nanoseconds, or Long.MAX_VALUE if the clock was never updated.
+     */
+    public long errorBoundNanos() {
+        final Snapshot snapshot = state.snapshot;
+        if (snapshot.errorNanos == Long.MAX_VALUE) {
+            return Long.MAX_VALUE;
+        }
+        return snapshot.errorNanos + (long) (snapshot.errorRate * Math.abs(System.nanoTime() - snapshot.baseMonotonicNanos));
+    }
+
+    @Override
+    public long millis() {
+        return Math.floorDiv(currentTimeNanos(), 1_000_000L);
+    }
+
+    @Override
+    public Instant instant() {
+        final long nanos = currentTimeNanos();
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    @Override
+    public NtsClock withZone(final ZoneId zone) {
+        if (zone.equals(this.zone)) {
+            return this;
+        }
+        return new NtsClock(state, zone);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof NtsClock)) {
+            return false;
+        }
+        final NtsClock other = (NtsClock) obj;
+        return state == other.state && zone.equals(other.zone);
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(state) ^ zone.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "NtsClock[" + zone + "]";
+    }
+
+}
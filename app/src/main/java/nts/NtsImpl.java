@@ -19,15 +19,13 @@ package nts;
 
 import nts.NTSExtensionFields.FieldType;
 import nts.NTSExtensionFields.NTSExtensionField;
+import nts.NTSExtensionFields.NTSExtensionFieldCursor;
 
-import com.google.crypto.tink.InsecureSecretKeyAccess;
-import com.google.crypto.tink.util.SecretBytes;
-import com.google.crypto.tink.daead.AesSivParameters;
-import com.google.crypto.tink.daead.AesSivKey;
 import com.google.crypto.tink.daead.subtle.DeterministicAeads;
-import com.google.crypto.tink.subtle.AesSiv;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 
@@ -41,27 +39,34 @@ public class NtsImpl extends NtpV4Impl implements NtsPacket {
     public byte[] plaintext;
     public NTSExtensionField authAndEncEF;
     private DeterministicAeads AesSivDaead;
+    private NTSEntropySource entropySource = NTSEntropySource.getDefault();
+    private byte[] nonce;
+
+    private byte[] extensionFieldsPlaintext;
+
+    private static final byte[] EMPTY_PLAINTEXT = new byte[0];
 
     /** Creates a new instance of NtsImpl */
     public NtsImpl(byte []key) {
+        this(NTSCryptoContext.createAesSiv(key));
+    }
 
-        try {
-        // Create key
-        AesSivParameters AES_SIV_PARAMETERS = AesSivParameters.builder()
-                .setKeySizeBytes(32)
-                .setVariant(AesSivParameters.Variant.NO_PREFIX)
-                .build();
-        SecretBytes keyBytes =
-            SecretBytes.copyFrom(
-                key,
-                InsecureSecretKeyAccess.get());
-
-        AesSivKey aesSivkey = AesSivKey.builder().setParameters(AES_SIV_PARAMETERS).setKeyBytes(keyBytes).build();
-        AesSivDaead = AesSiv.create(aesSivkey);
-
-        } catch(Exception e) {
-            throw new RuntimeException("Failed to create AES SIV KEY: " + e.getMessage());
-        }
+    /**
+     * Creates a new instance of NtsImpl reusing an already initialised AEAD.
+     *
+     * @param daead the AEAD of the association, see {@link NTSCryptoContext}.
+     */
+    public NtsImpl(DeterministicAeads daead) {
+        AesSivDaead = daead;
+    }
+
+    /**
+     * Sets the source of the unique identifiers and nonces used by this packet.
+     *
+     * @param entropySource the entropy source, {@link NTSEntropySource#getDefault()} by default.
+     */
+    public void setEntropySource(NTSEntropySource entropySource) {
+        this.entropySource = entropySource;
     }
 
     /**
@@ -73,30 +78,29 @@ public class NtsImpl extends NtpV4Impl implements NtsPacket {
     {
         super.buildRequest();
 
-        // Calculate a unique identifier and add the Extension Field
-        byte[] unique_identifier = new byte[32];
-        new java.security.SecureRandom().nextBytes(unique_identifier);
-        addUniqueIdentifierEF(unique_identifier);
-
-        // Use one of the negotiated cookies
-        addCookieEF(cookie);
-
         // Replace used cookies (try to maintain a backlog of 8)
         // The server will respond with one new cookie to replace
         // the cookie in the extension field above plus one extra
-        // for each cookie placeholder, so we count from 0 to num_cookies-2
-        // below
-        for(int idx=0; idx < num_cookies - 1; ++idx)
-        {
-            addCookiePlaceholderEF(cookie);
-        }
+        // for each cookie placeholder, so we request num_cookies-1
+        // placeholders
+        NTSRequestBuilder builder = new NTSRequestBuilder()
+                .setCookie(cookie)
+                .setPlaceholders(num_cookies - 1)
+                .setEntropySource(entropySource);
+
+        // Lay out the whole request in a single buffer, the extension fields are parsed back lazily if needed
+        byte[] packet = new byte[buf.length + builder.getExtensionFieldsLength()];
+        System.arraycopy(buf, 0, packet, 0, buf.length);
+        associatedDataLenght = builder.writeTo(packet, buf.length);
+        buf = packet;
 
         /*
          * Prepare the authentication and encryption Extension Field
          * This is done here to avoid unnecessary delays in the time measurement the timestamping of the request packet.
          */
-        prepareAuthAndEncEF();
-        
+        plaintext = EMPTY_PLAINTEXT;
+        nonce = new byte[NTSEntropySource.NONCE_LENGTH];
+        authAndEncEF = null;
     }
 
     /**
@@ -136,14 +140,9 @@ public class NtsImpl extends NtpV4Impl implements NtsPacket {
      * @return the body of the AuthAndEnc EF as bytearray.
      */
     private byte[] prepareAuthAndEncBody() {
-        int nonceLength = 16;
-        int ciphertextLength = 16;
-        byte[] auth_and_enc_body = new byte[4 + nonceLength + ciphertextLength];
-        auth_and_enc_body[0] = (byte) ((nonceLength >> 8) & 0xFF);
-        auth_and_enc_body[1] = (byte) (nonceLength & 0xFF);
-        auth_and_enc_body[2] = (byte) ((ciphertextLength >> 8) & 0xFF);
-        auth_and_enc_body[3] = (byte) (ciphertextLength & 0xFF);
-        return auth_and_enc_body;
+        byte[] auth_and_enc_field = new byte[NTSRequestBuilder.AUTH_AND_ENC_LENGTH];
+        NTSRequestBuilder.writeAuthAndEncHeader(auth_and_enc_field, 0);
+        return Arrays.copyOfRange(auth_and_enc_field, 4, auth_and_enc_field.length);
     }
 
 
@@ -158,7 +157,8 @@ public class NtsImpl extends NtpV4Impl implements NtsPacket {
         associatedDataLenght = buf.length;
 
         // Instantiate everything possible
-        plaintext = "".getBytes();
+        plaintext = EMPTY_PLAINTEXT;
+        nonce = new byte[NTSEntropySource.NONCE_LENGTH];
         byte[] authAndEncBody = prepareAuthAndEncBody(); 
         authAndEncEF =new NTSExtensionField(FieldType.NTS_AUTH_AND_ENC, authAndEncBody); 
         addExtensionField(authAndEncEF);
@@ -172,12 +172,26 @@ public class NtsImpl extends NtpV4Impl implements NtsPacket {
      */
     public void createAuthAndEncEF(byte[] nonce) {
 
+        // The nonce and ciphertext are patched in place, their lengths were already written by prepareAuthAndEncEF()
+        int bodyIdx = associatedDataLenght + 4;
+        int nonceLength = getShort(buf, bodyIdx);
+        int ciphertextLength = getShort(buf, bodyIdx + 2);
+        if (nonce.length != nonceLength) {
+            throw new IllegalArgumentException("Nonce must be " + nonceLength + " bytes long");
+        }
+
         try {
             // Change to _throws_ and control from caller
             byte[] ciphertext = AesSivDaead.encryptDeterministicallyWithAssociatedDatas(plaintext, new byte[][] {Arrays.copyOfRange(buf, 0, associatedDataLenght), nonce});
-            authAndEncEF.replaceBody(nonce, 4);
-            authAndEncEF.replaceBody(ciphertext, 4 + nonce.length);
-            System.arraycopy(authAndEncEF.toByteArray(), 0, buf, associatedDataLenght, authAndEncEF.getFieldLength());
+            if (ciphertext.length != ciphertextLength) {
+                throw new IllegalStateException("Unexpected ciphertext length " + ciphertext.length);
+            }
+            System.arraycopy(nonce, 0, buf, bodyIdx + 4, nonceLength);
+            System.arraycopy(ciphertext, 0, buf, bodyIdx + 4 + nonceLength, ciphertextLength);
+            if (authAndEncEF != null) {
+                // Keep the field object added by prepareAuthAndEncEF() in sync with the packet
+                System.arraycopy(buf, bodyIdx, authAndEncEF.body, 0, authAndEncEF.body.length);
+            }
         } catch (Exception e) {
             throw new RuntimeException("Failed to encrypt NTS packet: " + e.getMessage());
         }
@@ -190,8 +204,7 @@ public class NtsImpl extends NtpV4Impl implements NtsPacket {
      */
     public void createAuthAndEncEF()
     {
-        byte[] nonce = new byte[16];
-        new java.security.SecureRandom().nextBytes(nonce);
+        entropySource.nextNonce(nonce, 0);
         createAuthAndEncEF(nonce);
     }
 
@@ -202,49 +215,158 @@ public class NtsImpl extends NtpV4Impl implements NtsPacket {
         return ui(buf[index]) << 8 | ui(buf[index + 1]);
     }
 
-    private void extractExtensionFieldsFrom(byte [] src, int idx)
+    /**
+     * @return the number of valid bytes in the packet buffer, i.e. the length of the received datagram.
+     */
+    private int getPacketLength() {
+        return Math.min(getDatagramPacket().getLength(), buf.length);
+    }
+
+    private void extractExtensionFieldsFrom(byte [] src, int idx, int limit)
     {
-        while(idx < src.length)
+        NTSExtensionFieldCursor cursor = new NTSExtensionFieldCursor(src, idx, limit);
+        while(cursor.next())
         {
-            NTSExtensionField ef = NTSExtensionField.fromBytes(src, idx);
-            if(ef.fieldType == FieldType.NTS_AUTH_AND_ENC)
+            extensionFields.add(cursor.toExtensionField());
+        }
+    }
+
+    /**
+     * Returns the extension fields of the packet, including the ones decrypted from the NTS Authenticator and
+     * Encrypted Extension Field once {@link #decryptAndVerify()} has been called.
+     * The fields are materialized on first use, prefer {@link #getNewCookies()} on the hot path.
+     */
+    @Override
+    public List<NTSExtensionField> getExtensionFields()
+    {
+        if(extensionFields.isEmpty() || extensionFieldsPlaintext != plaintext)
+        {
+            extensionFields.clear();
+            extractExtensionFieldsFrom(buf, NTSRequestBuilder.NTP_HEADER_LENGTH, getPacketLength());
+            if(plaintext != null)
             {
-                associatedDataLenght = idx;
-                authAndEncEF = ef;
+                extractExtensionFieldsFrom(plaintext, 0, plaintext.length);
             }
-            idx += ef.getFieldLength();
-            extensionFields.add(ef);
+            extensionFieldsPlaintext = plaintext;
         }
+        return extensionFields;
+    }
 
+    /**
+     * Copies out the cookies sent by the server, from both the decrypted and the unencrypted extension fields.
+     * Must be called after {@link #decryptAndVerify()}.
+     *
+     * @return the new cookies, possibly empty.
+     */
+    public List<byte[]> getNewCookies()
+    {
+        List<byte[]> cookies = new ArrayList<>();
+        NTSExtensionFieldCursor cursor = new NTSExtensionFieldCursor(buf, NTSRequestBuilder.NTP_HEADER_LENGTH, getPacketLength());
+        collectCookies(cursor, cookies);
+        if(plaintext != null)
+        {
+            collectCookies(cursor.reset(plaintext, 0, plaintext.length), cookies);
+        }
+        return cookies;
     }
 
-    private void extractExtensionFields()
+    private static void collectCookies(NTSExtensionFieldCursor cursor, List<byte[]> cookies)
     {
-        int idx = 48;
-        associatedDataLenght = -1;
-        authAndEncEF = null;
-        extractExtensionFieldsFrom(buf, idx);
+        while(cursor.next())
+        {
+            if(cursor.is(FieldType.NTS_COOKIE))
+            {
+                cookies.add(cursor.copyBody());
+            }
+        }
     }
 
     /**
-     * Decrypt and verify a received NTS packet
+     * Positions a cursor on the first extension field of the given type in the unencrypted part of the packet.
      *
+     * @return the cursor on the field, or null if not found.
      */
-    public byte [] decryptAndVerify() throws AuthenticationFailureException
+    private NTSExtensionFieldCursor findExtensionField(FieldType fieldType)
+    {
+        NTSExtensionFieldCursor cursor = new NTSExtensionFieldCursor(buf, NTSRequestBuilder.NTP_HEADER_LENGTH, getPacketLength());
+        while(cursor.next())
+        {
+            if(cursor.is(fieldType))
+            {
+                return cursor;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that this response echoes the Unique Identifier of the request (RFC8915 section 5.7). A response that does
+     * not, e.g. a late answer to an earlier request on the same socket, is not meant for this request.
+     *
+     * @param req the request.
+     * @return true if the identifiers match, false if they do not or if this packet is malformed.
+     */
+    public boolean matchesUniqueIdentifierOf(NtsImpl req)
+    {
+        NTSExtensionFieldCursor reqUid = req.findExtensionField(FieldType.UNIQUE_IDENTIFIER);
+        if(reqUid == null)
+        {
+            return true; // nothing to compare with
+        }
+        try
+        {
+            NTSExtensionFieldCursor uid = findExtensionField(FieldType.UNIQUE_IDENTIFIER);
+            return uid != null && Arrays.equals(
+                    buf, uid.getBodyOffset(), uid.getBodyOffset() + uid.getBodyLength(),
+                    req.buf, reqUid.getBodyOffset(), reqUid.getBodyOffset() + reqUid.getBodyLength());
+        }
+        catch(IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Locates the NTS Authenticator and Encrypted Extension Field without copying the extension fields.
+     *
+     * @return the offset of the field, which is also the length of the associated data, or -1 if not found.
+     */
+    private int findAuthAndEncEF()
     {
-        if(associatedDataLenght == -1 || authAndEncEF == null)
+        NTSExtensionFieldCursor cursor = new NTSExtensionFieldCursor(buf, NTSRequestBuilder.NTP_HEADER_LENGTH, getPacketLength());
+        while(cursor.next())
         {
-            extractExtensionFields();
-            if(associatedDataLenght == -1 || authAndEncEF ==null)
+            if(cursor.is(FieldType.NTS_AUTH_AND_ENC))
             {
-                throw new RuntimeException("No authentication information found");
+                // Anything after this field is not authenticated, ignore it
+                return cursor.getOffset();
             }
         }
+        return -1;
+    }
 
-        int nonce_len = getShort(authAndEncEF.body, 0); 
-        int ct_len = getShort(authAndEncEF.body, 2);
-        byte [] nonce = Arrays.copyOfRange(authAndEncEF.body, 4, 4+nonce_len);
-        byte [] ct = Arrays.copyOfRange(authAndEncEF.body, 4+nonce_len, 4+nonce_len+ct_len);
+    /**
+     * Decrypt and verify a received NTS packet
+     *
+     */
+    public byte [] decryptAndVerify() throws AuthenticationFailureException
+    {
+        associatedDataLenght = findAuthAndEncEF();
+        if(associatedDataLenght == -1)
+        {
+            throw new RuntimeException("No authentication information found");
+        }
+
+        int fieldLength = getShort(buf, associatedDataLenght + 2);
+        int bodyIdx = associatedDataLenght + 4;
+        int nonce_len = getShort(buf, bodyIdx);
+        int ct_len = getShort(buf, bodyIdx + 2);
+        if(4 + 4 + nonce_len + ct_len > fieldLength)
+        {
+            throw new AuthenticationFailureException("Malformed NTS Authenticator and Encrypted Extension Field");
+        }
+        byte [] nonce = Arrays.copyOfRange(buf, bodyIdx + 4, bodyIdx + 4 + nonce_len);
+        byte [] ct = Arrays.copyOfRange(buf, bodyIdx + 4 + nonce_len, bodyIdx + 4 + nonce_len + ct_len);
 
         byte [] ad = Arrays.copyOfRange(buf, 0, associatedDataLenght);
 
@@ -262,7 +384,7 @@ public class NtsImpl extends NtpV4Impl implements NtsPacket {
             throw new RuntimeException(e.getMessage());
         }
 
-        extractExtensionFieldsFrom(pt, 0);
+        plaintext = pt;
 
         return pt;
     }
@@ -277,7 +399,11 @@ public class NtsImpl extends NtpV4Impl implements NtsPacket {
     @Override
     public void validate(NtsPacket req) throws IOException, NtsNakException, AuthenticationFailureException
     {
-        if(getStratum() == 0 && getReferenceIdString() == "NTSN")
+        if(req instanceof NtsImpl && !matchesUniqueIdentifierOf((NtsImpl) req))
+        {
+            throw new IOException("Unique identifier mismatch");
+        }
+        if(getStratum() == 0 && "NTSN".equals(getReferenceIdString()))
         {
             throw new NtsNakException();
         }
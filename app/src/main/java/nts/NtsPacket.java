@@ -1,6 +1,7 @@
 package nts;
 
 import java.io.IOException;
+import java.util.List;
 
 public interface NtsPacket extends NtpV4Packet {
     /**
@@ -58,6 +59,14 @@ public interface NtsPacket extends NtpV4Packet {
      */
     public byte [] decryptAndVerify() throws AuthenticationFailureException;
 
+    /**
+     * Copies out the cookies sent by the server, from both the decrypted and the unencrypted extension fields.
+     * Must be called after {@link #decryptAndVerify()}.
+     *
+     * @return the new cookies, possibly empty.
+     */
+    public List<byte[]> getNewCookies();
+
     /**
      * Validate a response packet given a request packet
      * 
@@ -19,6 +19,7 @@ package nts;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -27,16 +28,51 @@ import java.util.List;
  */
 public class TimeInfo {
 
+    /** Anomaly flag: the originate timestamp (t1) is zero, the server did not echo the request time. */
+    public static final int ZERO_ORIGINATE_TIME = 1;
+
+    /** Anomaly flag: the receive timestamp (t2) is zero. */
+    public static final int ZERO_RECEIVE_TIME = 1 << 1;
+
+    /** Anomaly flag: the transmit timestamp (t3) is zero. */
+    public static final int ZERO_TRANSMIT_TIME = 1 << 2;
+
+    /** Anomaly flag: the server sent the response before receiving the request (t3 &lt; t2). */
+    public static final int TRANSMIT_BEFORE_RECEIVE = 1 << 3;
+
+    /** Anomaly flag: the response arrived before the request was sent (t4 &lt; t1). */
+    public static final int RETURN_BEFORE_ORIGINATE = 1 << 4;
+
+    /** Anomaly flag: the processing time of the server is longer than the round trip, the delay is negative. */
+    public static final int NEGATIVE_DELAY = 1 << 5;
+
     private final NtpV3Packet message;
     private List<String> comments;
     private Long delayMillis;
     private Long offsetMillis;
+    private Long delayNanos;
+    private Long offsetNanos;
 
     /**
      * time at which time message packet was received by local machine
      */
     private final long returnTimeMillis;
 
+    /**
+     * time at which time message packet was received by local machine, in nanoseconds since the epoch
+     */
+    private final long returnTimeNanos;
+
+    /**
+     * time at which time message packet was received by local machine, as a 64-bit NTP value
+     */
+    private final long returnNtpTime;
+
+    /**
+     * time spent between the reception of the packet and the return of this object: parsing, authentication and decryption
+     */
+    private long processingNanos;
+
     /**
      * flag indicating that the TimeInfo details was processed and delay/offset were computed
      */
@@ -93,6 +129,8 @@ public class TimeInfo {
             throw new IllegalArgumentException("message cannot be null");
         }
         this.returnTimeMillis = returnTimeMillis;
+        this.returnTimeNanos = returnTimeMillis * 1_000_000L;
+        this.returnNtpTime = TimeStamp.toNtpTime(returnTimeMillis);
         this.message = message;
         this.comments = comments;
         if (doComputeDetails) {
@@ -100,6 +138,99 @@ public class TimeInfo {
         }
     }
 
+    /**
+     * Create TimeInfo object with raw packet message and destination time received with the full precision of the local clock. Offset and delay are then also
+     * available in nanoseconds, see {@link #getOffsetNanos()} and {@link #getDelayNanos()}.
+     *
+     * @param message          NTP message packet
+     * @param returnTime       destination receive time
+     * @param doComputeDetails flag to pre-compute delay/offset values
+     * @throws IllegalArgumentException if message is null
+     */
+    public TimeInfo(final NtpV3Packet message, final Instant returnTime, final boolean doComputeDetails) {
+        if (message == null) {
+            throw new IllegalArgumentException("message cannot be null");
+        }
+        this.returnTimeMillis = returnTime.toEpochMilli();
+        this.returnTimeNanos = returnTime.getEpochSecond() * 1_000_000_000L + returnTime.getNano();
+        this.returnNtpTime = TimeStamp.toNtpTime(returnTime.getEpochSecond(), returnTime.getNano());
+        this.message = message;
+        if (doComputeDetails) {
+            computeDetails();
+        }
+    }
+
+    /**
+     * Converts the difference of two 64-bit NTP values to nanoseconds. The difference is taken modulo 2^64, so it stays correct across an NTP era
+     * boundary as long as the two times are less than 68 years apart (RFC 5905 section 6).
+     */
+    private static long diffNanos(final long later, final long earlier) {
+        final long diff = later - earlier;
+        // arithmetic shift: whole seconds rounded down, the fraction is then positive
+        return (diff >> 32) * 1_000_000_000L + ((diff & 0xffffffffL) * 1_000_000_000L + 0x80000000L >>> 32);
+    }
+
+    /**
+     * Computes the clock offset {@code ((t2 - t1) + (t3 - t4)) / 2} from raw 64-bit NTP timestamps, without allocating. The result is only meaningful if
+     * {@link #anomalies(long, long, long, long)} is zero.
+     *
+     * @param t1 originate timestamp, the client transmit time
+     * @param t2 receive timestamp, the server receive time
+     * @param t3 transmit timestamp, the server transmit time
+     * @param t4 destination timestamp, the client receive time
+     * @return the offset of the server clock from the local clock in nanoseconds
+     */
+    public static long offsetNanos(final long t1, final long t2, final long t3, final long t4) {
+        return (diffNanos(t2, t1) + diffNanos(t3, t4)) / 2;
+    }
+
+    /**
+     * Computes the round-trip delay {@code (t4 - t1) - (t3 - t2)} from raw 64-bit NTP timestamps, without allocating. The result is only meaningful if
+     * {@link #anomalies(long, long, long, long)} is zero.
+     *
+     * @param t1 originate timestamp, the client transmit time
+     * @param t2 receive timestamp, the server receive time
+     * @param t3 transmit timestamp, the server transmit time
+     * @param t4 destination timestamp, the client receive time
+     * @return the round-trip network delay in nanoseconds
+     */
+    public static long delayNanos(final long t1, final long t2, final long t3, final long t4) {
+        return diffNanos(t4, t1) - diffNanos(t3, t2);
+    }
+
+    /**
+     * Checks raw 64-bit NTP timestamps for the anomalies that {@link #computeDetails()} reports as comments, without allocating.
+     *
+     * @param t1 originate timestamp, the client transmit time
+     * @param t2 receive timestamp, the server receive time
+     * @param t3 transmit timestamp, the server transmit time
+     * @param t4 destination timestamp, the client receive time
+     * @return a combination of the anomaly flags, {@link #ZERO_ORIGINATE_TIME} etc., or 0 if the timestamps are consistent
+     */
+    public static int anomalies(final long t1, final long t2, final long t3, final long t4) {
+        int flags = 0;
+        if (t1 == 0) {
+            flags |= ZERO_ORIGINATE_TIME;
+        }
+        if (t2 == 0) {
+            flags |= ZERO_RECEIVE_TIME;
+        }
+        if (t3 == 0) {
+            flags |= ZERO_TRANSMIT_TIME;
+        }
+        final long processing = t3 - t2;
+        final long roundTrip = t4 - t1;
+        if (processing < 0) {
+            flags |= TRANSMIT_BEFORE_RECEIVE;
+        }
+        if (roundTrip < 0) {
+            flags |= RETURN_BEFORE_ORIGINATE;
+        } else if (processing > roundTrip) {
+            flags |= NEGATIVE_DELAY;
+        }
+        return flags;
+    }
+
     /**
      * Add comment (error/warning) to list of comments associated with processing of NTP parameters. If comment list not create then one will be created.
      *
@@ -208,6 +339,71 @@ public class TimeInfo {
 
             offsetMillis = Long.valueOf((rcvTimeMillis - origTimeMillis + xmitTimeMillis - returnTimeMillis) / 2);
         }
+        computeNanos(origNtpTime, rcvNtpTime, xmitNtpTime);
+    }
+
+    /**
+     * Same equations as in {@link #computeDetails()} at the full precision of the timestamps. Comments are only added by the millisecond computation.
+     */
+    private void computeNanos(final TimeStamp origNtpTime, final TimeStamp rcvNtpTime, final TimeStamp xmitNtpTime) {
+        final long t1 = origNtpTime.getEpochNanos();
+        final long t2 = rcvNtpTime.getEpochNanos();
+        final long t3 = xmitNtpTime.getEpochNanos();
+        final long t4 = returnTimeNanos;
+        if (origNtpTime.ntpValue() == 0) {
+            if (xmitNtpTime.ntpValue() != 0) {
+                offsetNanos = Long.valueOf(t3 - t4);
+            }
+        } else if (rcvNtpTime.ntpValue() == 0 || xmitNtpTime.ntpValue() == 0) {
+            if (t1 <= t4) {
+                delayNanos = Long.valueOf(t4 - t1);
+            }
+            if (rcvNtpTime.ntpValue() != 0) {
+                offsetNanos = Long.valueOf(t2 - t1);
+            } else if (xmitNtpTime.ntpValue() != 0) {
+                offsetNanos = Long.valueOf(t3 - t4);
+            }
+        } else {
+            long delay = t4 - t1;
+            if (t3 >= t2) {
+                // a processing time longer than the round trip is a clock reading artifact, the delay cannot be negative
+                delay = Math.max(0, delay - (t3 - t2));
+            }
+            delayNanos = Long.valueOf(delay);
+            offsetNanos = Long.valueOf((t2 - t1 + t3 - t4) / 2);
+        }
+    }
+
+    /**
+     * Computes the clock offset in nanoseconds straight from the timestamps of the packet, without allocating and independently of
+     * {@link #computeDetails()}. It is only meaningful if {@link #anomalies()} is zero.
+     *
+     * @return the offset of the server clock from the local clock in nanoseconds.
+     * @see #offsetNanos(long, long, long, long)
+     */
+    public long offsetNanos() {
+        return offsetNanos(message.getOriginateTimeStampValue(), message.getReceiveTimeStampValue(), message.getTransmitTimeStampValue(), returnNtpTime);
+    }
+
+    /**
+     * Computes the round-trip delay in nanoseconds straight from the timestamps of the packet, without allocating and independently of
+     * {@link #computeDetails()}. It is only meaningful if {@link #anomalies()} is zero.
+     *
+     * @return the round-trip network delay in nanoseconds.
+     * @see #delayNanos(long, long, long, long)
+     */
+    public long delayNanos() {
+        return delayNanos(message.getOriginateTimeStampValue(), message.getReceiveTimeStampValue(), message.getTransmitTimeStampValue(), returnNtpTime);
+    }
+
+    /**
+     * Checks the timestamps of the packet for anomalies, without allocating.
+     *
+     * @return a combination of the anomaly flags, or 0 if the timestamps are consistent.
+     * @see #anomalies(long, long, long, long)
+     */
+    public int anomalies() {
+        return anomalies(message.getOriginateTimeStampValue(), message.getReceiveTimeStampValue(), message.getTransmitTimeStampValue(), returnNtpTime);
     }
 
     /**
@@ -259,6 +455,16 @@ public class TimeInfo {
         return delayMillis;
     }
 
+    /**
+     * Gets round-trip network delay in nanoseconds. It only has more than millisecond precision if the return time was given with it, see
+     * {@link #TimeInfo(NtpV3Packet, Instant, boolean)}. If null then could not compute the delay.
+     *
+     * @return Long or null if delay not available.
+     */
+    public Long getDelayNanos() {
+        return delayNanos;
+    }
+
     /**
      * Returns NTP message packet.
      *
@@ -277,6 +483,26 @@ public class TimeInfo {
         return offsetMillis;
     }
 
+    /**
+     * Gets clock offset in nanoseconds needed to adjust local clock to match remote clock. It only has more than millisecond precision if the return time was
+     * given with it, see {@link #TimeInfo(NtpV3Packet, Instant, boolean)}. If null then could not compute the offset.
+     *
+     * @return Long or null if offset not available.
+     */
+    public Long getOffsetNanos() {
+        return offsetNanos;
+    }
+
+    /**
+     * Returns the time spent by the client on the response after it was received: matching it with the request, verifying and decrypting it. The return
+     * time is read as the packet arrives, before this processing, so it is not part of the delay.
+     *
+     * @return processing time in nanoseconds, or 0 if not measured.
+     */
+    public long getProcessingNanos() {
+        return processingNanos;
+    }
+
     /**
      * Returns time at which time message packet was received by local machine.
      *
@@ -286,6 +512,24 @@ public class TimeInfo {
         return returnTimeMillis;
     }
 
+    /**
+     * Returns time at which time message packet was received by local machine, in nanoseconds since the epoch.
+     *
+     * @return packet return time in nanoseconds.
+     */
+    public long getReturnTimeNanos() {
+        return returnTimeNanos;
+    }
+
+    /**
+     * Sets the time spent by the client on the response after it was received.
+     *
+     * @param processingNanos processing time in nanoseconds.
+     */
+    void setProcessingNanos(final long processingNanos) {
+        this.processingNanos = processingNanos;
+    }
+
     /**
      * Computes a hash code for this object. The result is the exclusive OR of the return time and the message hash code.
      *
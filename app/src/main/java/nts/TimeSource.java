@@ -0,0 +1,422 @@
+package nts;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Combines the time of several NTS servers into one offset with an error bound, after the selection, cluster and
+ * combine algorithms of RFC 5905 section 11.2.
+ * <p>
+ * Each server is polled once per {@link #poll()}, all of them concurrently with
+ * {@link NTSUDPClient#getTimeAsync(InetAddress, int)}. Each valid sample gives a correctness interval, its offset plus
+ * or minus its root distance, within which the true offset lies if the server is honest. A Marzullo-style intersection
+ * finds the largest number of servers whose intervals share a common part and rejects the others as falsetickers; the
+ * cluster algorithm then drops the survivors farthest from the others while that reduces the selection jitter; the
+ * remaining offsets are averaged, weighted by the inverse of their root distance.
+ * </p>
+ * <p>
+ * {@link #combine(List)} runs the algorithms on samples obtained otherwise, e.g. bursts.
+ * </p>
+ */
+public final class TimeSource {
+
+    /** Minimum root distance term (Δ + δ) of a sample, 10 ms as MINDISP in RFC 5905. */
+    public static final long MIN_DISPERSION_NANOS = 10_000_000L;
+
+    /** Frequency tolerance of the clocks, 15 ppm as PHI in RFC 5905. */
+    public static final double PHI = 15e-6;
+
+    /** Minimum number of survivors kept by the cluster algorithm, as NMIN in RFC 5905. */
+    public static final int MIN_SURVIVORS = 3;
+
+    /** Precision assumed for the local clock: 2^-20 s, about 1 µs. */
+    private static final int LOCAL_PRECISION = -20;
+
+    private final NTSUDPClient client;
+    private final List<InetAddress> servers;
+    private final int port;
+    private volatile Estimate lastEstimate;
+
+    /**
+     * One combined estimate: the offset of the local clock to add to get the time of the servers, the bound of its error
+     * and the samples used and rejected.
+     */
+    public static final class Estimate {
+        private final long offsetNanos;
+        private final long lowNanos;
+        private final long highNanos;
+        private final double jitterNanos;
+        private final List<TimeInfo> survivors;
+        private final List<TimeInfo> falsetickers;
+
+        Estimate(final long offsetNanos, final long lowNanos, final long highNanos, final double jitterNanos,
+                final List<TimeInfo> survivors, final List<TimeInfo> falsetickers) {
+            this.offsetNanos = offsetNanos;
+            this.lowNanos = lowNanos;
+            this.highNanos = highNanos;
+            this.jitterNanos = jitterNanos;
+            this.survivors = survivors;
+            this.falsetickers = falsetickers;
+        }
+
+        /**
+         * @return the combined clock offset in nanoseconds.
+         */
+        public long getOffsetNanos() {
+            return offsetNanos;
+        }
+
+        /**
+         * @return the largest distance in nanoseconds between the combined offset and the ends of the intersection of
+         *         the correctness intervals, where the true offset lies if a majority of the servers is honest.
+         */
+        public long getErrorBoundNanos() {
+            return Math.max(offsetNanos - lowNanos, highNanos - offsetNanos);
+        }
+
+        /**
+         * @return the lower end of the intersection of the correctness intervals, in nanoseconds.
+         */
+        public long getLowNanos() {
+            return lowNanos;
+        }
+
+        /**
+         * @return the upper end of the intersection of the correctness intervals, in nanoseconds.
+         */
+        public long getHighNanos() {
+            return highNanos;
+        }
+
+        /**
+         * @return the selection jitter of the survivors in nanoseconds, the RMS of their offset differences.
+         */
+        public double getJitterNanos() {
+            return jitterNanos;
+        }
+
+        /**
+         * @return the samples combined into the offset, by increasing root distance.
+         */
+        public List<TimeInfo> getSurvivors() {
+            return survivors;
+        }
+
+        /**
+         * @return the samples outside the intersection, or dropped by the cluster algorithm.
+         */
+        public List<TimeInfo> getFalsetickers() {
+            return falsetickers;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Estimate { offset: %.3f ms, error bound: %.3f ms, jitter: %.3f ms, survivors: %d, falsetickers: %d }",
+                    offsetNanos / 1e6, getErrorBoundNanos() / 1e6, jitterNanos / 1e6, survivors.size(), falsetickers.size());
+        }
+    }
+
+    /**
+     * A sample with its correctness interval.
+     */
+    private static final class Candidate {
+        final TimeInfo info;
+        final long offset;
+        final long distance;
+        final double jitter;
+
+        Candidate(final TimeInfo info, final long offset, final long distance, final double jitter) {
+            this.info = info;
+            this.offset = offset;
+            this.distance = distance;
+            this.jitter = jitter;
+        }
+    }
+
+    /**
+     * @param client  the client used for the queries.
+     * @param servers the addresses of the servers.
+     */
+    public TimeSource(final NTSUDPClient client, final Collection<InetAddress> servers) {
+        this(client, servers, NtpV3Packet.NTP_PORT);
+    }
+
+    /**
+     * @param client  the client used for the queries.
+     * @param servers the addresses of the servers.
+     * @param port    the port of the servers.
+     */
+    public TimeSource(final NTSUDPClient client, final Collection<InetAddress> servers, final int port) {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No server");
+        }
+        this.client = client;
+        this.servers = new ArrayList<>(servers);
+        this.port = port;
+    }
+
+    /**
+     * @return the servers of this source.
+     */
+    public List<InetAddress> getServers() {
+        return Collections.unmodifiableList(servers);
+    }
+
+    /**
+     * @return the estimate of the last successful poll, or null if there was none.
+     */
+    public Estimate getLastEstimate() {
+        return lastEstimate;
+    }
+
+    /**
+     * Polls all the servers concurrently and combines their samples. Servers that fail or time out are left out.
+     *
+     * @return the combined estimate.
+     * @throws IOException if no majority of the servers that answered agree.
+     * @throws InterruptedException if interrupted while waiting for the servers.
+     */
+    public Estimate poll() throws IOException, InterruptedException {
+        try {
+            return pollAsync().get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Polls all the servers concurrently without blocking the caller.
+     *
+     * @return a future completed with the combined estimate, or exceptionally with an {@link IOException} if no majority
+     *         of the servers that answered agree.
+     * @see #poll()
+     */
+    public CompletableFuture<Estimate> pollAsync() {
+        final List<CompletableFuture<TimeInfo>> queries = new ArrayList<>(servers.size());
+        for (final InetAddress server : servers) {
+            // A failed server counts as no sample rather than failing the poll
+            queries.add(client.getTimeAsync(server, port).exceptionally(e -> null));
+        }
+        return CompletableFuture.allOf(queries.toArray(new CompletableFuture<?>[0])).thenCompose(done -> {
+            final List<TimeInfo> samples = new ArrayList<>(queries.size());
+            for (final CompletableFuture<TimeInfo> query : queries) {
+                final TimeInfo info = query.join();
+                if (info != null) {
+                    samples.add(info);
+                }
+            }
+            final Estimate estimate = combine(samples);
+            if (estimate == null) {
+                return CompletableFuture.failedFuture(new IOException("No majority of agreeing servers among " + samples.size()
+                        + " answers from " + servers.size() + " servers"));
+            }
+            lastEstimate = estimate;
+            return CompletableFuture.completedFuture(estimate);
+        });
+    }
+
+    /**
+     * Computes the root distance of a sample, i.e. half the width of its correctness interval: half the round-trip delay
+     * to the reference clock (at least {@link #MIN_DISPERSION_NANOS}), plus the root dispersion of the server and the
+     * dispersion due to the precision of both clocks and the frequency tolerance over the round trip.
+     *
+     * @param info the sample.
+     * @return the root distance in nanoseconds.
+     */
+    public static long rootDistanceNanos(final TimeInfo info) {
+        final NtpV3Packet message = info.getMessage();
+        final long delay = Math.max(0, info.delayNanos());
+        final long rootDelay = shortToNanos(message.getRootDelay());
+        final long rootDispersion = shortToNanos(message.getRootDispersion());
+        final double dispersion = Math.scalb(1e9, message.getPrecision()) + Math.scalb(1e9, LOCAL_PRECISION) + PHI * delay;
+        return Math.max(MIN_DISPERSION_NANOS, rootDelay + delay) / 2 + rootDispersion + (long) dispersion;
+    }
+
+    // NTP short format: signed 16.16 fixed-point seconds
+    private static long shortToNanos(final int value) {
+        return (long) value * 1_000_000_000L >> 16;
+    }
+
+    /**
+     * Runs the selection, cluster and combine algorithms on samples from different servers. Samples with inconsistent
+     * timestamps, see {@link TimeInfo#anomalies()}, from unsynchronized servers or with an invalid stratum are ignored.
+     * Without a jitter estimate per server, the cluster algorithm takes the precision of the servers as their jitter.
+     *
+     * @param samples one sample per server.
+     * @return the combined estimate, or null if there are no valid samples or no majority of them agree.
+     */
+    public static Estimate combine(final List<TimeInfo> samples) {
+        final List<Candidate> candidates = new ArrayList<>(samples.size());
+        for (final TimeInfo info : samples) {
+            if (isValid(info)) {
+                final double jitter = Math.scalb(1e9, info.getMessage().getPrecision());
+                candidates.add(new Candidate(info, info.offsetNanos(), rootDistanceNanos(info), jitter));
+            }
+        }
+        return select(candidates);
+    }
+
+    /**
+     * Runs the selection, cluster and combine algorithms on the bursts of different servers. The best sample of each
+     * burst is used, and the jitter of the burst is added to its root distance as in RFC 5905.
+     *
+     * @param filters one burst per server.
+     * @return the combined estimate, or null if there are no valid samples or no majority of them agree.
+     * @see NTSUDPClient#getTimeBurst(InetAddress, int, int)
+     */
+    public static Estimate combineFiltered(final List<NTSClockFilter> filters) {
+        final List<Candidate> candidates = new ArrayList<>(filters.size());
+        for (final NTSClockFilter filter : filters) {
+            final TimeInfo info = filter.getBest();
+            if (isValid(info)) {
+                final double jitter = Math.max(filter.getJitterNanos(), Math.scalb(1e9, info.getMessage().getPrecision()));
+                candidates.add(new Candidate(info, info.offsetNanos(), rootDistanceNanos(info) + (long) jitter, jitter));
+            }
+        }
+        return select(candidates);
+    }
+
+    private static boolean isValid(final TimeInfo info) {
+        final NtpV3Packet message = info.getMessage();
+        final int anomalies = info.anomalies() & ~TimeInfo.NEGATIVE_DELAY;
+        return anomalies == 0 && message.getLeapIndicator() != NtpV3Packet.LI_ALARM_CONDITION && message.getStratum() >= 1 && message.getStratum() <= 15;
+    }
+
+    private static Estimate select(final List<Candidate> candidates) {
+        final List<TimeInfo> falsetickers = new ArrayList<>();
+        final int n = candidates.size();
+        if (n == 0) {
+            return null;
+        }
+
+        // Selection: endpoints sorted by value, type -1 for a lower end, 0 for the offset, +1 for an upper end
+        final long[] values = new long[3 * n];
+        final int[] types = new int[3 * n];
+        final Integer[] order = new Integer[3 * n];
+        for (int i = 0; i < n; i++) {
+            final Candidate c = candidates.get(i);
+            values[3 * i] = c.offset - c.distance;
+            types[3 * i] = -1;
+            values[3 * i + 1] = c.offset;
+            types[3 * i + 1] = 0;
+            values[3 * i + 2] = c.offset + c.distance;
+            types[3 * i + 2] = +1;
+        }
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> values[a] != values[b] ? Long.compare(values[a], values[b]) : Integer.compare(types[a], types[b]));
+
+        long low = 0;
+        long high = 0;
+        boolean agreed = false;
+        // Find the fewest falsetickers (allow) such that n - allow intervals intersect
+        for (int allow = 0; 2 * allow < n; allow++) {
+            int found = 0;
+            int chime = 0;
+            for (int i = 0; i < order.length; i++) {
+                chime -= types[order[i]];
+                if (chime >= n - allow) {
+                    low = values[order[i]];
+                    break;
+                }
+                if (types[order[i]] == 0) {
+                    found++;
+                }
+            }
+            chime = 0;
+            for (int i = order.length - 1; i >= 0; i--) {
+                chime += types[order[i]];
+                if (chime >= n - allow) {
+                    high = values[order[i]];
+                    break;
+                }
+                if (types[order[i]] == 0) {
+                    found++;
+                }
+            }
+            // More offsets outside the intersection than falsetickers allowed: allow more
+            if (found > allow) {
+                continue;
+            }
+            if (high > low) {
+                agreed = true;
+                break;
+            }
+        }
+        if (!agreed) {
+            return null;
+        }
+
+        final List<Candidate> survivors = new ArrayList<>(n);
+        for (final Candidate c : candidates) {
+            // as in RFC 5905, a candidate survives if its offset, not just its interval, lies in the intersection
+            if (c.offset >= low && c.offset <= high) {
+                survivors.add(c);
+            } else {
+                falsetickers.add(c.info);
+            }
+        }
+        survivors.sort((a, b) -> Long.compare(a.distance, b.distance));
+
+        // Cluster: drop the outlier with the largest selection jitter while it exceeds the smallest jitter of the survivors
+        while (survivors.size() > MIN_SURVIVORS) {
+            int worst = -1;
+            double maxJitter = 0;
+            for (int i = 0; i < survivors.size(); i++) {
+                final double jitter = selectionJitter(survivors, survivors.get(i).offset);
+                if (jitter > maxJitter) {
+                    maxJitter = jitter;
+                    worst = i;
+                }
+            }
+            double minPeerJitter = Double.MAX_VALUE;
+            for (final Candidate c : survivors) {
+                minPeerJitter = Math.min(minPeerJitter, c.jitter);
+            }
+            if (maxJitter <= minPeerJitter) {
+                break;
+            }
+            falsetickers.add(survivors.remove(worst).info);
+        }
+
+        // Combine: offsets weighted by the inverse of the root distance
+        double weightSum = 0;
+        double offsetSum = 0;
+        for (final Candidate c : survivors) {
+            final double weight = 1.0 / Math.max(1, c.distance);
+            weightSum += weight;
+            offsetSum += weight * c.offset;
+        }
+        final long offset = Math.round(offsetSum / weightSum);
+        final double jitter = selectionJitter(survivors, offset);
+
+        final List<TimeInfo> survivorInfos = new ArrayList<>(survivors.size());
+        for (final Candidate c : survivors) {
+            survivorInfos.add(c.info);
+        }
+        return new Estimate(offset, Math.min(low, offset), Math.max(high, offset), jitter,
+                Collections.unmodifiableList(survivorInfos), Collections.unmodifiableList(falsetickers));
+    }
+
+    private static double selectionJitter(final List<Candidate> survivors, final long offset) {
+        if (survivors.size() < 2) {
+            return 0;
+        }
+        double sum = 0;
+        for (final Candidate c : survivors) {
+            final double diff = c.offset - offset;
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum / (survivors.size() - 1));
+    }
+
+}
@@ -20,6 +20,7 @@ package nts;
 import java.io.Serializable;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
 import java.util.Date;
 import java.util.Locale;
 import java.util.TimeZone;
@@ -101,6 +102,17 @@ public class TimeStamp implements Serializable, Comparable<TimeStamp> {
         return getNtpTime(System.currentTimeMillis());
     }
 
+    /**
+     * Constructs a NTP timestamp object set to the current time with the full precision of the system clock, i.e. microseconds or better on most platforms,
+     * instead of milliseconds as {@link #getCurrentTime()}.
+     *
+     * @return NTP timestamp object set to the current time.
+     * @see Instant#now()
+     */
+    public static TimeStamp getPreciseCurrentTime() {
+        return getNtpTime(Instant.now());
+    }
+
     // initialization of static time bases
     /*
      * static { TimeZone utcZone = TimeZone.getTimeZone("UTC"); Calendar calendar = Calendar.getInstance(utcZone); calendar.set(1900, Calendar.JANUARY, 1, 0, 0,
@@ -120,6 +132,33 @@ public class TimeStamp implements Serializable, Comparable<TimeStamp> {
         return new TimeStamp(toNtpTime(dateMillis));
     }
 
+    /**
+     * Converts an instant to NTP timestamp object, keeping its precision down to the nanosecond.
+     *
+     * @param instant the instant.
+     * @return NTP timestamp object at the specified instant.
+     */
+    public static TimeStamp getNtpTime(final Instant instant) {
+        return new TimeStamp(toNtpTime(instant.getEpochSecond(), instant.getNano()));
+    }
+
+    /**
+     * Converts 64-bit NTP timestamp to nanoseconds since January 1, 1970, 00:00:00 GMT, rounded to the nearest nanosecond. The result covers the years 1678 to
+     * 2262.
+     *
+     * @param ntpTimeValue the input time
+     * @return the number of nanoseconds since January 1, 1970, 00:00:00 GMT represented by this NTP timestamp value.
+     */
+    public static long getEpochNanos(final long ntpTimeValue) {
+        final long seconds = ntpTimeValue >>> 32 & 0xffffffffL;
+        final long fraction = ntpTimeValue & 0xffffffffL;
+        // fraction * 10^9 < 2^62, no overflow
+        final long nanos = fraction * 1_000_000_000L + 0x80000000L >>> 32;
+        // same time bases as getTime(long), see there
+        final long baseSeconds = (seconds & 0x80000000L) == 0 ? msb0baseTime / 1000 : msb1baseTime / 1000;
+        return (baseSeconds + seconds) * 1_000_000_000L + nanos;
+    }
+
     /**
      * Converts 64-bit NTP timestamp to Java standard time.
      *
@@ -189,6 +228,24 @@ public class TimeStamp implements Serializable, Comparable<TimeStamp> {
         return seconds << 32 | fraction;
     }
 
+    /**
+     * Converts a time in seconds and nanoseconds since January 1, 1970, 00:00:00 GMT to 64-bit NTP time representation.
+     *
+     * @param epochSecond the seconds since January 1, 1970, 00:00:00 GMT.
+     * @param nanos       the nanoseconds within the second, from 0 to 999,999,999.
+     * @return NTP timestamp representation of the time.
+     */
+    protected static long toNtpTime(final long epochSecond, final long nanos) {
+        final boolean useBase1 = epochSecond < msb0baseTime / 1000; // time < Feb-2036
+        long seconds = epochSecond - (useBase1 ? msb1baseTime : msb0baseTime) / 1000;
+        // nanos < 2^30, the shift does not overflow
+        final long fraction = (nanos << 32) / 1_000_000_000L;
+        if (useBase1) {
+            seconds |= 0x80000000L; // set high-order bit if msb1baseTime 1900 used
+        }
+        return seconds << 32 | fraction;
+    }
+
     /**
      * Converts 64-bit NTP timestamp value to a <code>String</code>. The NTP timestamp value is represented as hexadecimal string with seconds separated by
      * fractional seconds by a decimal point; e.g. c1a089bd.fc904f6d == Tue, Dec 10 2002 10:41:49.986
@@ -314,6 +371,26 @@ public class TimeStamp implements Serializable, Comparable<TimeStamp> {
         return getTime(ntpTime);
     }
 
+    /**
+     * Converts NTP timestamp to nanoseconds since the epoch.
+     *
+     * @return the number of nanoseconds since January 1, 1970, 00:00:00 GMT represented by this NTP timestamp value.
+     * @see #getEpochNanos(long)
+     */
+    public long getEpochNanos() {
+        return getEpochNanos(ntpTime);
+    }
+
+    /**
+     * Converts NTP timestamp to an instant, rounded to the nearest nanosecond.
+     *
+     * @return the instant represented by this NTP timestamp value.
+     */
+    public Instant getInstant() {
+        final long nanos = getEpochNanos(ntpTime);
+        return Instant.ofEpochSecond(Math.floorDiv(nanos, 1_000_000_000L), Math.floorMod(nanos, 1_000_000_000L));
+    }
+
     /**
      * Computes a hash code for this Timestamp. The result is the exclusive OR of the two halves of the primitive <code>long</code> value represented by this
      * <code>TimeStamp</code> object. That is, the hash code is the value of the expression: <blockquote>
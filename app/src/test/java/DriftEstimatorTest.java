@@ -0,0 +1,59 @@
+import java.util.Random;
+
+import nts.DriftEstimator;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Frequency estimate and holdover prediction of the drift estimator, on synthetic samples of a clock running 20 ppm
+ * slow.
+ */
+public class DriftEstimatorTest {
+
+    private static final double FREQUENCY = 20e-6;
+    private static final long EPOCH_NANOS = 1_767_225_600_000_000_000L; // 2026-01-01T00:00:00Z
+    private static final long START_NANOS = 123_456_789_000L;
+    private static final long POLL_NANOS = 64_000_000_000L;
+    private static final long NOISE_NANOS = 50_000;
+    private static final long ERROR_NANOS = 100_000;
+
+    private static long reference(long monotonicNanos) {
+        long elapsed = monotonicNanos - START_NANOS;
+        return EPOCH_NANOS + elapsed + Math.round(elapsed * FREQUENCY);
+    }
+
+    @Test
+    public void frequencyAndHoldover() {
+        DriftEstimator estimator = new DriftEstimator(32);
+        Random random = new Random(42);
+        long last = START_NANOS;
+        for (int i = 0; i < 32; i++) {
+            last = START_NANOS + i * POLL_NANOS;
+            long noise = Math.round((2 * random.nextDouble() - 1) * NOISE_NANOS);
+            estimator.add(last, reference(last) + noise, ERROR_NANOS);
+        }
+
+        assertEquals(FREQUENCY, estimator.getFrequency(), 1e-7);
+        assertTrue(Math.abs(estimator.getFrequency() - FREQUENCY) <= estimator.getFrequencyErrorBound(),
+                "frequency outside its error bound");
+
+        // between the samples and in holdover, the prediction stays within its error bound
+        long middle = START_NANOS + 15 * POLL_NANOS + POLL_NANOS / 2;
+        long later = last + 1000_000_000_000L;
+        for (long t : new long[] {middle, last, later}) {
+            long error = Math.abs(estimator.predictEpochNanos(t) - reference(t));
+            assertTrue(error <= estimator.errorBoundNanos(t), "error " + error + " ns beyond the bound at " + t);
+        }
+        // without the frequency correction, the prediction would be 20 ms off after 1000 s
+        assertEquals(reference(later), estimator.predictEpochNanos(later), 1_000_000);
+
+        // the bound grows after the last sample, at least by the wander allowance
+        long atLast = estimator.errorBoundNanos(last);
+        long afterLast = estimator.errorBoundNanos(later);
+        assertTrue(afterLast >= atLast + Math.round(DriftEstimator.DEFAULT_WANDER_RATE * 1000_000_000_000L),
+                "bound " + atLast + " ns at the last sample, " + afterLast + " ns 1000 s later");
+    }
+
+}
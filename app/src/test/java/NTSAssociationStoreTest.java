@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import nts.NTSAssociationStore;
+import nts.NTSConfig;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Associations saved by one store are restored by the next one opened on the same file.
+ */
+public class NTSAssociationStoreTest {
+
+    private static NTSConfig association(int cookieCount) {
+        List<byte[]> cookies = new ArrayList<>();
+        for (int i = 0; i < cookieCount; i++) {
+            byte[] cookie = new byte[100];
+            cookie[0] = (byte) i;
+            cookies.add(cookie);
+        }
+        byte[] c2s = new byte[32];
+        byte[] s2c = new byte[32];
+        c2s[0] = 1;
+        s2c[0] = 2;
+        return new NTSConfig(null, null, cookies, "192.0.2.1", 123, c2s, s2c);
+    }
+
+    @Test
+    public void associationSurvivesRestart() throws IOException {
+        Path file = Files.createTempFile("nts-associations", ".db");
+        Files.delete(file);
+        try {
+            try (NTSAssociationStore store = new NTSAssociationStore(file)) {
+                NTSConfig config = association(8);
+                config.takeCookie();
+                store.save("ke.example", config);
+                store.save("removed.example", association(8));
+                store.remove("removed.example");
+            }
+            // a record torn by a crash is dropped
+            Files.write(file, new byte[] {0, 0, 1, 0, 42}, StandardOpenOption.APPEND);
+
+            try (NTSAssociationStore store = new NTSAssociationStore(file)) {
+                assertNull(store.take("removed.example"));
+                NTSConfig restored = store.take("ke.example");
+                assertNotNull(restored);
+                assertEquals("192.0.2.1", restored.host);
+                assertEquals(123, restored.port);
+                assertArrayEquals(association(0).C2SKey, restored.C2SKey);
+                assertArrayEquals(association(0).S2CKey, restored.S2CKey);
+                assertEquals(7, restored.cookies.size());
+                assertEquals(0, restored.cookies.toList().get(0)[0]);
+                // cookies are loaded at most once
+                assertNull(store.take("ke.example"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void recordWithShortKeysIsCorrupt() throws IOException {
+        Path file = Files.createTempFile("nts-associations", ".db");
+        Files.delete(file);
+        try (NTSAssociationStore store = new NTSAssociationStore(file)) {
+            NTSConfig config = association(8);
+            config.C2SKey = new byte[16];
+            store.save("short.example", config);
+            assertThrows(IOException.class, () -> store.take("short.example"));
+            assertNull(store.take("short.example"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void emptyFileIsTreatedAsNew() throws IOException {
+        // as left by a crash before the header was written
+        Path file = Files.createTempFile("nts-associations", ".db");
+        try {
+            try (NTSAssociationStore store = new NTSAssociationStore(file)) {
+                store.save("ke.example", association(8));
+            }
+            try (NTSAssociationStore store = new NTSAssociationStore(file)) {
+                assertNotNull(store.take("ke.example"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+}
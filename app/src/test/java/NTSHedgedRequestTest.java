@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import nts.NTSConfig;
+import nts.NTSPeer;
+import nts.NTSUDPClient;
+import nts.TimeInfo;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A hedged query fails as soon as the required number of responses can no longer be reached, without waiting for the
+ * requests still in flight.
+ */
+public class NTSHedgedRequestTest {
+
+    private static final int TIMEOUT_MILLIS = 10_000;
+
+    /** A server without any association whose NTS-KE handshakes fail at once. */
+    private static NTSPeer failingPeer(InetAddress host) {
+        NTSPeer peer = new NTSPeer(host.getHostAddress(), null);
+        peer.setHandshakeExecutor(runnable -> {
+            throw new RejectedExecutionException("no NTS-KE server");
+        });
+        return peer;
+    }
+
+    /** A server with a usable association that never answers. */
+    private static NTSPeer silentPeer(InetAddress host, int port) {
+        byte[] cookie = new byte[64];
+        NTSConfig config = new NTSConfig(null, null, new ArrayList<>(Arrays.asList(cookie)), host.getHostAddress(), port,
+                new byte[32], new byte[32]);
+        NTSPeer peer = new NTSPeer(host.getHostAddress(), config);
+        peer.lowWatermark = 0;
+        return peer;
+    }
+
+    @Test
+    public void failsOnceRequiredResponsesAreOutOfReach() throws Exception {
+        NTSUDPClient client = new NTSUDPClient();
+        client.setDefaultTimeout(TIMEOUT_MILLIS);
+        try (DatagramSocket silent = new DatagramSocket(0)) {
+            List<InetAddress> hosts = new ArrayList<>();
+            for (int i = 1; i <= 5; i++) {
+                InetAddress host = InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) i});
+                hosts.add(host);
+                client.registerPeer(host, i <= 3 ? failingPeer(host) : silentPeer(host, silent.getLocalPort()));
+            }
+
+            long start = System.nanoTime();
+            CompletableFuture<List<TimeInfo>> result = client.getTimeHedged(hosts, silent.getLocalPort(), 3, 0);
+            ExecutionException error = assertThrows(ExecutionException.class, () -> result.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertInstanceOf(IOException.class, error.getCause());
+            assertTrue(error.getCause().getSuppressed().length >= 3, "failures not reported");
+            // two silent servers cannot make up for three failures, their timeouts are not waited for
+            assertTrue(elapsedMillis < TIMEOUT_MILLIS / 2, "failed after " + elapsedMillis + " ms");
+        } finally {
+            client.close();
+        }
+    }
+
+}
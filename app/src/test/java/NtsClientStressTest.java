@@ -0,0 +1,193 @@
+import nts.NTSConfig;
+import nts.NTSCryptoContext;
+import nts.NTSPeer;
+import nts.NTSUDPClient;
+import nts.TimeInfo;
+import nts.TimeStamp;
+import nts.NTSExtensionFields.FieldType;
+import nts.NTSExtensionFields.NTSExtensionField;
+import nts.NTSExtensionFields.NTSExtensionFieldCursor;
+import org.junit.jupiter.api.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs many threads against one shared NTSUDPClient and a local stand-in NTS server, and checks that every cookie is
+ * used exactly once and none is lost.
+ */
+public class NtsClientStressTest {
+
+    private static final int THREADS = 16;
+    private static final int REQUESTS_PER_THREAD = 50;
+    private static final int COOKIE_LENGTH = 64;
+
+    private static final byte[] C2S_KEY = new byte[32];
+    private static final byte[] S2C_KEY = new byte[32];
+
+    static {
+        Arrays.fill(S2C_KEY, (byte) 0x5A);
+    }
+
+    /**
+     * Minimal NTS server: checks the request authenticator, records the cookie and answers with fresh unique cookies.
+     */
+    private static final class StandInServer implements Runnable {
+        final DatagramSocket socket;
+        final NTSCryptoContext context = new NTSCryptoContext(C2S_KEY, S2C_KEY);
+        final AtomicLong nextCookie = new AtomicLong();
+        final Set<ByteBuffer> usedCookies = ConcurrentHashMap.newKeySet();
+        final AtomicLong reusedCookies = new AtomicLong();
+        final AtomicLong issuedCookies = new AtomicLong();
+
+        StandInServer() throws SocketException {
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        }
+
+        byte[] newCookie() {
+            issuedCookies.incrementAndGet();
+            return ByteBuffer.allocate(COOKIE_LENGTH).putLong(nextCookie.incrementAndGet()).array();
+        }
+
+        @Override
+        public void run() {
+            byte[] buf = new byte[2048];
+            while (!socket.isClosed()) {
+                try {
+                    DatagramPacket request = new DatagramPacket(buf, buf.length);
+                    socket.receive(request);
+                    byte[] response = respond(buf, request.getLength());
+                    socket.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+                } catch (Exception e) {
+                    // closed, or a request the client should not have sent: the client times out
+                }
+            }
+        }
+
+        byte[] respond(byte[] req, int length) throws Exception {
+            NTSExtensionFieldCursor cursor = new NTSExtensionFieldCursor(req, 48, length);
+            byte[] uid = null;
+            int cookies = 0;
+            int auth = -1;
+            while (cursor.next()) {
+                if (cursor.is(FieldType.UNIQUE_IDENTIFIER)) {
+                    uid = cursor.copyBody();
+                } else if (cursor.is(FieldType.NTS_COOKIE)) {
+                    cookies++;
+                    if (!usedCookies.add(ByteBuffer.wrap(cursor.copyBody()))) {
+                        reusedCookies.incrementAndGet();
+                    }
+                } else if (cursor.is(FieldType.NTS_COOKIE_PLACEHOLDER)) {
+                    cookies++;
+                } else if (cursor.is(FieldType.NTS_AUTH_AND_ENC)) {
+                    auth = cursor.getOffset();
+                }
+            }
+            byte[] nonce = Arrays.copyOfRange(req, auth + 8, auth + 24);
+            byte[] ciphertext = Arrays.copyOfRange(req, auth + 24, auth + 40);
+            context.getC2SAead().decryptDeterministicallyWithAssociatedDatas(ciphertext, Arrays.copyOf(req, auth), nonce);
+
+            byte[] plaintext = new byte[cookies * (4 + COOKIE_LENGTH)];
+            for (int i = 0; i < cookies; i++) {
+                int offset = NTSExtensionField.writeHeader(plaintext, i * (4 + COOKIE_LENGTH), FieldType.NTS_COOKIE, 4 + COOKIE_LENGTH);
+                System.arraycopy(newCookie(), 0, plaintext, offset, COOKIE_LENGTH);
+            }
+
+            int associatedDataLength = 48 + 4 + uid.length;
+            byte[] header = new byte[associatedDataLength];
+            header[0] = (byte) (4 << 3 | 4); // NTPv4, server
+            header[1] = 1;
+            System.arraycopy(req, 40, header, 24, 8); // origin timestamp
+            long now = TimeStamp.getCurrentTime().ntpValue();
+            ByteBuffer.wrap(header, 32, 16).putLong(now).putLong(now);
+            NTSExtensionField.writeHeader(header, 48, FieldType.UNIQUE_IDENTIFIER, 4 + uid.length);
+            System.arraycopy(uid, 0, header, 52, uid.length);
+
+            byte[] responseNonce = new byte[16];
+            ByteBuffer.wrap(responseNonce).putLong(System.nanoTime());
+            byte[] encrypted = context.getS2CAead().encryptDeterministicallyWithAssociatedDatas(plaintext, header, responseNonce);
+
+            int authLength = 8 + responseNonce.length + encrypted.length;
+            byte[] response = Arrays.copyOf(header, associatedDataLength + authLength);
+            int offset = NTSExtensionField.writeHeader(response, associatedDataLength, FieldType.NTS_AUTH_AND_ENC, authLength);
+            ByteBuffer.wrap(response, offset, 4).putShort((short) responseNonce.length).putShort((short) encrypted.length);
+            System.arraycopy(responseNonce, 0, response, offset + 4, responseNonce.length);
+            System.arraycopy(encrypted, 0, response, offset + 4 + responseNonce.length, encrypted.length);
+            return response;
+        }
+    }
+
+    @Test
+    public void concurrentCallersNeverShareOrLoseCookies() throws Exception {
+        StandInServer server = new StandInServer();
+        Thread serverThread = new Thread(server, "nts-stand-in-server");
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        InetAddress host = InetAddress.getLoopbackAddress();
+        // One cookie per concurrent caller, refilling an empty jar is not what this test is about
+        NTSConfig config = new NTSConfig(null, null, new ArrayList<>(), host.getHostAddress(), server.socket.getLocalPort(), C2S_KEY, S2C_KEY);
+        config.cookies.setCapacity(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            config.cookies.add(server.newCookie());
+        }
+
+        NTSUDPClient client = new NTSUDPClient();
+        client.setDefaultTimeout(5000);
+        NTSPeer peer = new NTSPeer(host.getHostAddress(), config);
+        peer.lowWatermark = 0; // there is no NTS-KE server to refresh the association from
+        client.registerPeer(host, peer);
+
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                final boolean async = t % 2 == 0;
+                results.add(threads.submit(() -> {
+                    start.await();
+                    int ok = 0;
+                    for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+                        TimeInfo info = async ? client.getTimeAsync(host, server.socket.getLocalPort()).get()
+                                : client.getTime(host, server.socket.getLocalPort());
+                        info.computeDetails();
+                        ok++;
+                    }
+                    return ok;
+                }));
+            }
+            start.countDown();
+            int ok = 0;
+            for (Future<Integer> result : results) {
+                ok += result.get();
+            }
+
+            assertEquals(THREADS * REQUESTS_PER_THREAD, ok);
+            assertEquals(0, server.reusedCookies.get(), "cookies sent more than once");
+            assertEquals(THREADS * REQUESTS_PER_THREAD, server.usedCookies.size());
+            assertEquals(server.issuedCookies.get() - server.usedCookies.size(), config.cookies.size(), "cookies lost");
+            assertTrue(config.cookies.size() >= 1);
+        } finally {
+            threads.shutdownNow();
+            client.close();
+            server.socket.close();
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+
+import nts.NTSCryptoContext;
+import nts.NTSEntropySource;
+import nts.NtsImpl;
+
+import java.security.SecureRandom;
+
+/**
+ * Compares the per-request cost of generating the unique identifier and nonce of an NTS request
+ * with a new SecureRandom per value (the previous behaviour) against the shared NTSEntropySource.
+ * Run the main method, this is not a unit test.
+ */
+public class NtsEntropyBenchmark {
+
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 200_000;
+
+    private static long newSecureRandomPerValue(int iterations) {
+        byte[] uid = new byte[32];
+        byte[] nonce = new byte[16];
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            new SecureRandom().nextBytes(uid);
+            new SecureRandom().nextBytes(nonce);
+            sink += uid[0] + nonce[0];
+        }
+        return sink;
+    }
+
+    private static long sharedEntropySource(NTSEntropySource source, int iterations) {
+        byte[] uid = new byte[32];
+        byte[] nonce = new byte[16];
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            source.nextUniqueIdentifier(uid, 0);
+            source.nextNonce(nonce, 0);
+            sink += uid[0] + nonce[0];
+        }
+        return sink;
+    }
+
+    private static long buildRequests(int iterations) {
+        NTSCryptoContext context = new NTSCryptoContext(new byte[32], new byte[32]);
+        byte[] cookie = new byte[100];
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            NtsImpl request = new NtsImpl(context.getC2SAead());
+            request.buildRequest(cookie, 8);
+            request.createAuthAndEncEF();
+            sink += request.getDatagramPacket().getLength();
+        }
+        return sink;
+    }
+
+    private static void report(String name, long elapsedNanos, int iterations) {
+        System.out.printf("%-40s %10.1f ns/request%n", name, (double) elapsedNanos / iterations);
+    }
+
+    public static void main(String[] args) {
+        NTSEntropySource source = NTSEntropySource.getDefault();
+        long sink = 0;
+
+        sink += newSecureRandomPerValue(WARMUP);
+        sink += sharedEntropySource(source, WARMUP);
+        sink += buildRequests(WARMUP / 10);
+
+        long start = System.nanoTime();
+        sink += newSecureRandomPerValue(ITERATIONS);
+        report("new SecureRandom() per UID and nonce", System.nanoTime() - start, ITERATIONS);
+
+        start = System.nanoTime();
+        sink += sharedEntropySource(source, ITERATIONS);
+        report("shared NTSEntropySource", System.nanoTime() - start, ITERATIONS);
+
+        start = System.nanoTime();
+        sink += buildRequests(ITERATIONS / 10);
+        report("full request (build + auth EF)", System.nanoTime() - start, ITERATIONS / 10);
+
+        System.out.println("(ignore) " + sink);
+    }
+
+}
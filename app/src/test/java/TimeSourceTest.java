@@ -0,0 +1,96 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import nts.NtpV3Impl;
+import nts.NtpV3Packet;
+import nts.TimeInfo;
+import nts.TimeSource;
+import nts.TimeStamp;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Selection and combining of samples from several servers, on synthetic packets.
+ */
+public class TimeSourceTest {
+
+    private static final Instant T1 = Instant.parse("2026-01-01T00:00:00Z");
+    private static final long DELAY_NANOS = 10_000_000L;
+
+    /**
+     * A sample of a server whose clock is ahead by the given offset, with a symmetric round trip of 10 ms.
+     */
+    private static TimeInfo sample(long offsetNanos) {
+        NtpV3Impl message = new NtpV3Impl();
+        message.setStratum(2);
+        message.setPrecision(-20);
+        message.setLeapIndicator(NtpV3Packet.LI_NO_WARNING);
+        message.setOriginateTimeStamp(TimeStamp.getNtpTime(T1));
+        Instant t2 = T1.plusNanos(DELAY_NANOS / 2 + offsetNanos);
+        message.setReceiveTimeStamp(TimeStamp.getNtpTime(t2));
+        message.setTransmitTime(TimeStamp.getNtpTime(t2.plusNanos(100_000)));
+        return new TimeInfo(message, T1.plusNanos(DELAY_NANOS + 100_000), false);
+    }
+
+    @Test
+    public void falsetickerIsRejected() {
+        List<TimeInfo> samples = new ArrayList<>();
+        samples.add(sample(1_000_000));
+        samples.add(sample(1_200_000));
+        samples.add(sample(800_000));
+        samples.add(sample(1_100_000));
+        TimeInfo falseticker = sample(500_000_000);
+        samples.add(falseticker);
+
+        TimeSource.Estimate estimate = TimeSource.combine(samples);
+
+        assertNotNull(estimate);
+        assertEquals(samples.size(), estimate.getSurvivors().size() + estimate.getFalsetickers().size());
+        assertTrue(estimate.getFalsetickers().contains(falseticker));
+        assertTrue(Math.abs(estimate.getOffsetNanos() - 1_000_000) < 300_000, estimate.toString());
+        assertTrue(estimate.getLowNanos() <= estimate.getOffsetNanos() && estimate.getOffsetNanos() <= estimate.getHighNanos());
+        assertTrue(estimate.getErrorBoundNanos() <= TimeSource.rootDistanceNanos(samples.get(0)) * 2, estimate.toString());
+    }
+
+    @Test
+    public void overlappingFalsetickerIsRejected() {
+        List<TimeInfo> samples = new ArrayList<>();
+        samples.add(sample(0));
+        samples.add(sample(1_000_000));
+        // its interval overlaps the intersection of the two others, but not its offset
+        TimeInfo falseticker = sample(9_000_000);
+        samples.add(falseticker);
+
+        TimeSource.Estimate estimate = TimeSource.combine(samples);
+
+        assertNotNull(estimate);
+        assertEquals(2, estimate.getSurvivors().size());
+        assertTrue(estimate.getFalsetickers().contains(falseticker));
+        assertTrue(Math.abs(estimate.getOffsetNanos() - 500_000) < 100_000, estimate.toString());
+    }
+
+    @Test
+    public void noMajorityNoEstimate() {
+        List<TimeInfo> samples = new ArrayList<>();
+        samples.add(sample(0));
+        samples.add(sample(1_000_000_000L));
+
+        assertNull(TimeSource.combine(samples));
+    }
+
+    @Test
+    public void unsynchronizedServerIsIgnored() {
+        TimeInfo unsynchronized = sample(0);
+        ((NtpV3Impl) unsynchronized.getMessage()).setLeapIndicator(NtpV3Packet.LI_ALARM_CONDITION);
+        List<TimeInfo> samples = new ArrayList<>();
+        samples.add(unsynchronized);
+
+        assertNull(TimeSource.combine(samples));
+    }
+
+}
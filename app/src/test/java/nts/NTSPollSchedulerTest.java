@@ -0,0 +1,75 @@
+package nts;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Poll adjustment of the poll scheduler, on synthetic offsets.
+ */
+public class NTSPollSchedulerTest {
+
+    private static final double PRECISION_NANOS = 1_000;
+    private static final int MIN_POLL = 4;
+    private static final int MAX_POLL = 10;
+
+    @Test
+    public void stableServerIsPolledLessOften() {
+        NTSPollScheduler.PollInterval interval = new NTSPollScheduler.PollInterval(MIN_POLL);
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            interval.sample(1_000_000 + random.nextInt(2_000) - 1_000, PRECISION_NANOS, MIN_POLL, MAX_POLL);
+        }
+        // raised up to the maximum, and kept there
+        assertEquals(MAX_POLL, interval.exponent);
+    }
+
+    @Test
+    public void unstableServerIsPolledMoreOften() {
+        NTSPollScheduler.PollInterval interval = new NTSPollScheduler.PollInterval(MAX_POLL);
+        // each difference four times the previous one, soon beyond four times their jitter
+        long offset = 0;
+        long diff = 1_000;
+        for (int i = 0; i < 20; i++) {
+            interval.sample(offset, PRECISION_NANOS, MIN_POLL, MAX_POLL);
+            offset += diff;
+            diff *= 4;
+        }
+        // lowered down to the minimum, and kept there
+        assertEquals(MIN_POLL, interval.exponent);
+    }
+
+    @Test
+    public void firstDifferenceIsNotRewarded() {
+        NTSPollScheduler.PollInterval interval = new NTSPollScheduler.PollInterval(MIN_POLL);
+        interval.sample(0, PRECISION_NANOS, MIN_POLL, MAX_POLL);
+        interval.sample(50_000_000, PRECISION_NANOS, MIN_POLL, MAX_POLL);
+        assertEquals(0, interval.counter);
+        // the next difference is compared with the jitter seeded from the first one
+        interval.sample(0, PRECISION_NANOS, MIN_POLL, MAX_POLL);
+        assertTrue(interval.counter > 0);
+        interval.sample(500_000_000, PRECISION_NANOS, MIN_POLL, MAX_POLL);
+        assertTrue(interval.counter < 0);
+    }
+
+    @Test
+    public void failureBacksOffWithinRange() {
+        NTSPollScheduler.PollInterval interval = new NTSPollScheduler.PollInterval(MAX_POLL - 1);
+        interval.counter = 20;
+        interval.failure(MIN_POLL, MAX_POLL);
+        assertEquals(MAX_POLL, interval.exponent);
+        assertEquals(0, interval.counter);
+        interval.failure(MIN_POLL, MAX_POLL);
+        assertEquals(MAX_POLL, interval.exponent);
+
+        // a range changed meanwhile applies at the next poll
+        interval.sample(0, PRECISION_NANOS, MIN_POLL, 6);
+        assertEquals(6, interval.exponent);
+        interval.failure(8, MAX_POLL);
+        assertEquals(8, interval.exponent);
+    }
+
+}